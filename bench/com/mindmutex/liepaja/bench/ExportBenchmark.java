@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import com.mindmutex.liepaja.ContentLoader;
+import com.mindmutex.liepaja.EventCache;
+import com.mindmutex.liepaja.EventExporter;
+import com.mindmutex.liepaja.StreamingEventParser;
+
+/**
+ * Measures {@link EventExporter} over a range of stored days. Days are created from
+ * {@link ParserBenchmark#createSyntheticPage(int)}, with descriptions unique to each
+ * day, in a temporary cache directory and exported to a writer that only counts
+ * characters, so the figures cover reading snapshots and formatting.
+ * <p>
+ * Runs on desktop JVM with <i>src</i> and <i>gen</i> on the class path:
+ * <pre>
+ * java com.mindmutex.liepaja.bench.ExportBenchmark [-d days] [-s rows] [-i iterations]
+ *      [-f ics,json]
+ * </pre>
+ * For every format prints days and events per second, output size and bytes allocated
+ * per day (when JVM supports thread allocation counters), which should stay flat as
+ * <i>-d</i> grows.
+ */
+public class ExportBenchmark {
+
+    private int days = 365;
+
+    private int rows = 120;
+
+    private int iterations = 5;
+
+    private List<String> formats = Arrays.asList(EventExporter.ICALENDAR, EventExporter.JSON);
+
+    public static void main(String[] args) throws IOException {
+        ExportBenchmark benchmark = new ExportBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-d")) {
+                benchmark.days = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-s")) {
+                benchmark.rows = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-i")) {
+                benchmark.iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-f")) {
+                benchmark.formats = Arrays.asList(args[++i].split(","));
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+        benchmark.run();
+    }
+
+    public void run() throws IOException {
+        File directory = File.createTempFile("export", ".bench");
+        directory.delete();
+        try {
+            // small memory tier so days are read from disk like after a restart
+            EventCache cache = new EventCache(directory, 1, Long.MAX_VALUE);
+            cache.setDiskLimits(Integer.MAX_VALUE, 0);
+            long[] range = fill(cache);
+            EventExporter exporter = new EventExporter(new EventCache(directory, 1, Long.MAX_VALUE));
+
+            System.out.println(String.format("%-6s %6s %8s %10s %12s %8s %12s",
+                "format", "days", "events", "days/s", "events/s", "MB", "alloc B/day"));
+            for (String format : formats) {
+                // warm up
+                exporter.export(range[0], range[1], format, new CountingWriter());
+
+                long best = Long.MAX_VALUE;
+                long allocated = -1;
+                CountingWriter out = null;
+                int events = 0;
+                for (int i = 0; i < iterations; i++) {
+                    out = new CountingWriter();
+                    long allocatedBefore = getAllocatedBytes();
+                    long start = System.nanoTime();
+                    events = exporter.export(range[0], range[1], format, out);
+                    best = Math.min(best, System.nanoTime() - start);
+                    if (allocatedBefore >= 0) {
+                        allocated = getAllocatedBytes() - allocatedBefore;
+                    }
+                }
+                double seconds = best / 1e9;
+                System.out.println(String.format("%-6s %6d %8d %10.1f %12.1f %8.2f %12s",
+                    format, days, events, days / seconds, events / seconds,
+                    out.count / (1024.0 * 1024.0),
+                    allocated < 0 ? "n/a" : String.valueOf(allocated / days)));
+            }
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Stores {@link #days} consecutive days starting today.
+     *
+     * @return keys of the first and last day
+     */
+    private long[] fill(EventCache cache) throws IOException {
+        String page = ParserBenchmark.createSyntheticPage(rows);
+        StreamingEventParser parser = new StreamingEventParser();
+        Calendar day = Calendar.getInstance();
+        long first = ContentLoader.getDayKey(day);
+        long last = first;
+        for (int i = 0; i < days; i++) {
+            last = ContentLoader.getDayKey(day);
+            String unique = page.replace("apraksts numur", "apraksts " + i + " numur");
+            cache.put(last, parser.parse(new StringReader(unique), null));
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return new long[] {first, last};
+    }
+
+    /**
+     * @return bytes allocated by current thread or -1 if not supported
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Discards output counting characters.
+     */
+    private static class CountingWriter extends Writer {
+        long count;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            count += length;
+        }
+
+        @Override
+        public void write(int c) {
+            count++;
+        }
+
+        @Override
+        public void write(String text, int offset, int length) {
+            count += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
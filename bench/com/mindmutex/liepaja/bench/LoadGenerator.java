@@ -0,0 +1,243 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mindmutex.liepaja.ContentHandlerStatus;
+import com.mindmutex.liepaja.ContentLoader;
+import com.mindmutex.liepaja.Event;
+import com.mindmutex.liepaja.EventCache;
+import com.mindmutex.liepaja.HttpTransport;
+import com.mindmutex.liepaja.Metrics;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Drives concurrent {@link ContentLoader} loads over HTTP and reports throughput, latency
+ * percentiles and failures. Target is either a running site given by <i>-u</i> or a
+ * directory of recorded pages served by an embedded {@link ReplayServer}, in which case
+ * its network condition options apply.
+ * <p>
+ * Runs on desktop JVM with <i>src</i> and <i>gen</i> on the class path:
+ * <pre>
+ * java com.mindmutex.liepaja.bench.LoadGenerator [-c concurrency] [-n loads] [-k days]
+ *      [-p parser] [-a retries] [-o timeout ms] [-v] [-u url | [replay options] directory]
+ * </pre>
+ * Loads cycle over <i>-k</i> distinct days starting today. With <i>-v</i> loads share a
+ * cache whose entries expire immediately, so repeated days are revalidated with
+ * conditional requests. Stage timing of the most recent loads is printed using
+ * {@link Metrics}.
+ */
+public class LoadGenerator {
+
+    private int concurrency = 8;
+
+    private int loads = 200;
+
+    private int days;
+
+    private String parser = "streaming";
+
+    private int retries = 2;
+
+    private int timeout = 10000;
+
+    private boolean revalidate;
+
+    private String url;
+
+    private File directory;
+
+    private ReplayServer.Conditions conditions = new ReplayServer.Conditions();
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private long[] latencies;
+
+    private long bytesReceived;
+
+    private final Map<String, Integer> errors = new TreeMap<String, Integer>();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-c")) {
+                generator.concurrency = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-n")) {
+                generator.loads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-k")) {
+                generator.days = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-p")) {
+                generator.parser = args[++i];
+            } else if (args[i].equals("-a")) {
+                generator.retries = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-o")) {
+                generator.timeout = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-v")) {
+                generator.revalidate = true;
+            } else if (args[i].equals("-u")) {
+                generator.url = args[++i];
+            } else if (args[i].startsWith("-") && i + 1 < args.length
+                    && generator.conditions.parse(args[i], args[i + 1])) {
+                i++;
+            } else {
+                generator.directory = new File(args[i]);
+            }
+        }
+        if (generator.url == null && (generator.directory == null
+                || !generator.directory.isDirectory())) {
+            System.err.println("No URL or page directory provided, see class documentation for usage.");
+            System.exit(1);
+        }
+        generator.run();
+    }
+
+    public void run() throws IOException, InterruptedException {
+        HttpServer server = null;
+        ReplayServer replay = null;
+        String site = url;
+        if (site == null) {
+            replay = new ReplayServer(directory, conditions);
+            server = ReplayServer.start(new InetSocketAddress("127.0.0.1", 0), replay);
+            site = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        }
+        try {
+            execute(site);
+        } finally {
+            if (server != null) {
+                System.out.println("server:    " + replay);
+                server.stop(0);
+            }
+        }
+    }
+
+    private void execute(final String site) throws InterruptedException {
+        final long[] dayKeys = getDayKeys(days > 0 ? days : loads);
+        final HttpTransport transport = new HttpTransport(timeout, timeout, retries, 100);
+        final EventCache cache = revalidate ? new EventCache(null, dayKeys.length, 0) : null;
+        latencies = new long[loads];
+        Metrics.setEnabled(true);
+        Metrics.clear();
+
+        List<Thread> threads = new ArrayList<Thread>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            threads.add(new Thread("load-" + i) {
+                @Override
+                public void run() {
+                    int index;
+                    while ((index = next.getAndIncrement()) < loads) {
+                        load(site, index, dayKeys[index % dayKeys.length], transport, cache);
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        report(site, elapsed);
+    }
+
+    private void load(String site, int index, long dayKey, HttpTransport transport,
+            EventCache cache) {
+        final String[] error = new String[1];
+        ContentLoader loader = new ContentLoader(site, new ContentHandlerStatus() {
+            @Override
+            public void onComplete(Map<String, List<Event>> events) {
+            }
+
+            @Override
+            public void onError(int errorCode, String message) {
+                error[0] = message != null ? message : "error " + Integer.toHexString(errorCode);
+            }
+        });
+        loader.setTransport(transport);
+        loader.setParser(ContentLoader.createParser(parser));
+        loader.setCache(cache);
+        loader.setCalendar(ContentLoader.getDay(dayKey));
+
+        long start = System.nanoTime();
+        loader.run();
+        latencies[index] = System.nanoTime() - start;
+
+        synchronized (errors) {
+            bytesReceived += loader.getBytesReceived();
+            if (error[0] != null) {
+                Integer count = errors.get(error[0]);
+                errors.put(error[0], count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    private void report(String site, long elapsed) {
+        int failed = 0;
+        for (Integer count : errors.values()) {
+            failed += count;
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format("target:    %s, parser=%s, retries=%d%s", site, parser,
+            retries, revalidate ? ", revalidating" : ""));
+        System.out.println(String.format("loads:     %d over %d days, concurrency %d, %.2f s",
+            loads, days > 0 ? days : loads, concurrency, elapsed / 1e9));
+        System.out.println(String.format("rate:      %.1f loads/s, %.2f MB received",
+            loads / (elapsed / 1e9), bytesReceived / (1024.0 * 1024.0)));
+        System.out.println(String.format("latency:   p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+            percentile(0.5) / 1e6, percentile(0.9) / 1e6, percentile(0.99) / 1e6,
+            percentile(1.0) / 1e6));
+        System.out.println(String.format("errors:    %d (%.1f%%)", failed, 100.0 * failed / loads));
+        for (Map.Entry<String, Integer> error : errors.entrySet()) {
+            System.out.println(String.format("%10d  %s", error.getValue(), error.getKey()));
+        }
+        System.out.println(Metrics.summarize());
+    }
+
+    private long percentile(double percentile) {
+        int index = (int) Math.ceil(percentile * latencies.length) - 1;
+        return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+    }
+
+    /**
+     * @return keys of consecutive days starting today
+     */
+    private static long[] getDayKeys(int count) {
+        long[] dayKeys = new long[count];
+        Calendar day = Calendar.getInstance();
+        for (int i = 0; i < count; i++) {
+            dayKeys[i] = ContentLoader.getDayKey(day);
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return dayKeys;
+    }
+}
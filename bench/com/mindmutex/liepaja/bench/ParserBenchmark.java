@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mindmutex.liepaja.ContentLoader;
+import com.mindmutex.liepaja.Event;
+import com.mindmutex.liepaja.EventParser;
+import com.mindmutex.liepaja.ExtractionPlan;
+
+/**
+ * Measures extraction cost of {@link EventParser} implementations over saved calendar
+ * pages. Pages are read into memory before measuring so no I/O is involved.
+ * <p>
+ * Runs on desktop JVM with <i>src</i>, <i>gen</i> and HtmlCleaner on the class path:
+ * <pre>
+ * java com.mindmutex.liepaja.bench.ParserBenchmark [-i iterations] [-w warmup]
+ *      [-p xpath,htmlcleaner,streaming] [-x plan] [-s rows] page.html|directory ...
+ * </pre>
+ * Option <i>-s</i> adds a synthetic page with the given number of rows, useful as a
+ * pathological day. Parser <i>xpath</i> is the {@link XPathEventParser} baseline, the
+ * others apply {@link ExtractionPlan} given by <i>-x</i> (default layout if omitted). For every page and parser prints throughput, latency percentiles
+ * and bytes allocated per operation (when JVM supports thread allocation counters).
+ */
+public class ParserBenchmark {
+
+    private int iterations = 200;
+
+    private int warmup = 50;
+
+    private List<String> parsers = Arrays.asList("xpath", "htmlcleaner", "streaming");
+
+    private ExtractionPlan plan = ExtractionPlan.getDefault();
+
+    private Map<String, String> pages = new LinkedHashMap<String, String>();
+
+    public static void main(String[] args) throws IOException {
+        ParserBenchmark benchmark = new ParserBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-i")) {
+                benchmark.iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-w")) {
+                benchmark.warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-p")) {
+                benchmark.parsers = Arrays.asList(args[++i].split(","));
+            } else if (args[i].equals("-x")) {
+                benchmark.plan = ExtractionPlan.compile(args[++i]);
+            } else if (args[i].equals("-s")) {
+                int rows = Integer.parseInt(args[++i]);
+                benchmark.pages.put("synthetic-" + rows, createSyntheticPage(rows));
+            } else {
+                benchmark.addPages(new File(args[i]));
+            }
+        }
+        if (benchmark.pages.isEmpty()) {
+            System.err.println("No pages provided, see class documentation for usage.");
+            System.exit(1);
+        }
+        benchmark.run();
+    }
+
+    private void addPages(File file) throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            Arrays.sort(files);
+            for (File child : files) {
+                if (child.isFile()) {
+                    addPages(child);
+                }
+            }
+        } else {
+            pages.put(file.getName(), readFile(file));
+        }
+    }
+
+    public void run() throws IOException {
+        System.out.println(String.format("%-24s %-12s %6s %10s %10s %10s %10s %12s",
+            "page", "parser", "rows", "ops/s", "p50 us", "p99 us", "max us", "alloc B/op"));
+
+        for (Map.Entry<String, String> page : pages.entrySet()) {
+            for (String name : parsers) {
+                Result result = measure(createParser(name), page.getValue());
+                System.out.println(String.format("%-24s %-12s %6d %10.1f %10.1f %10.1f %10.1f %12s",
+                    page.getKey(), name, result.rows, result.throughput,
+                    result.percentile(0.5) / 1000.0, result.percentile(0.99) / 1000.0,
+                    result.percentile(1.0) / 1000.0,
+                    result.allocated < 0 ? "n/a" : String.valueOf(result.allocated / iterations)));
+            }
+        }
+    }
+
+    private EventParser createParser(String name) {
+        if (name.equals("xpath")) {
+            return new XPathEventParser();
+        }
+        return ContentLoader.createParser(name, plan);
+    }
+
+    private Result measure(EventParser parser, String html) throws IOException {
+        Result result = new Result(iterations);
+        for (int i = 0; i < warmup; i++) {
+            result.rows = countRows(parser.parse(new StringReader(html), null));
+        }
+
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long operationStart = System.nanoTime();
+            parser.parse(new StringReader(html), null);
+            result.latencies[i] = System.nanoTime() - operationStart;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = getAllocatedBytes();
+
+        result.throughput = iterations / (elapsed / 1e9);
+        result.allocated = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+        Arrays.sort(result.latencies);
+        return result;
+    }
+
+    private static int countRows(Map<String, List<Event>> events) {
+        int rows = 0;
+        for (List<Event> list : events.values()) {
+            rows += list.size();
+        }
+        return rows;
+    }
+
+    /**
+     * @return bytes allocated by current thread or -1 if not supported
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    static String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            return new String(data, 0, offset, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Builds page similar in structure to the calendar page with the given
+     * number of event rows surrounded by unrelated markup.
+     */
+    static String createSyntheticPage(int rows) {
+        StringBuilder html = new StringBuilder(rows * 160 + 4096);
+        html.append("<html><head><script>var menu = '<div id=\"events\">';</script></head><body>");
+        for (int i = 0; i < 50; i++) {
+            html.append("<div class=\"menu\"><a href=\"/lat/").append(i).append("\">Izvēlne ")
+                .append(i).append("</a></div>");
+        }
+        html.append("<div id=\"events\"><table><tr><th>Kategorija</th><th>Vieta</th>"
+            + "<th>Laiks</th><th>Apraksts</th></tr>");
+        for (int i = 0; i < rows; i++) {
+            html.append("<tr><td>").append(i % 20 == 0 ? "Kategorija " + (i / 20) : "&nbsp;")
+                .append("</td><td><a href=\"/vieta/").append(i % 7).append("\">Vieta ").append(i % 7)
+                .append("</a></td><td>").append(10 + i % 12).append(":").append(i % 2 == 0 ? "00" : "30")
+                .append("</td><td>Pasākuma apraksts numur ").append(i).append(" &amp; vēl</td></tr>");
+        }
+        html.append("</table></div><div id=\"footer\">&copy; liepajniekiem.lv</div></body></html>");
+        return html.toString();
+    }
+
+    private static class Result {
+        final long[] latencies;
+
+        int rows;
+
+        double throughput;
+
+        long allocated;
+
+        Result(int iterations) {
+            latencies = new long[iterations];
+        }
+
+        long percentile(double percentile) {
+            int index = (int) Math.ceil(percentile * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+        }
+    }
+}
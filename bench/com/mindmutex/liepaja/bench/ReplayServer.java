@@ -0,0 +1,300 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mindmutex.liepaja.FileTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP server replaying recorded calendar pages with simulated network conditions, used
+ * to exercise {@link com.mindmutex.liepaja.ContentLoader} without the real site. Pages
+ * are chosen by query string like {@link FileTransport}: <i>&lt;day key&gt;.html</i> or
+ * <i>default.html</i>.
+ * <p>
+ * Runs on desktop JVM with <i>src</i> and <i>gen</i> on the class path:
+ * <pre>
+ * java com.mindmutex.liepaja.bench.ReplayServer [-p port] [-l latency ms] [-j jitter ms]
+ *      [-b bytes per second] [-e error rate] [-r reset rate] [-t truncate rate] directory
+ * </pre>
+ * Latency delays the response headers, bandwidth throttles the body. Rates are fractions
+ * of requests: errors answer <i>503</i>, resets close the connection without a response
+ * and truncated bodies end halfway although the full <i>Content-Length</i> is declared.
+ * Pages carry an <i>ETag</i> so conditional requests are answered with <i>304</i>.
+ * Path <i>/stats</i> returns counters as text.
+ */
+public class ReplayServer implements HttpHandler {
+
+    /**
+     * Simulated network conditions, all disabled by default.
+     */
+    public static class Conditions {
+        public long latency;
+
+        public long jitter;
+
+        /**
+         * Body bytes per second, 0 for unlimited.
+         */
+        public long bandwidth;
+
+        public double errorRate;
+
+        public double resetRate;
+
+        public double truncateRate;
+
+        /**
+         * Parses a condition option.
+         *
+         * @return true if the option was recognised and its value consumed
+         */
+        boolean parse(String option, String value) {
+            if (option.equals("-l")) {
+                latency = Long.parseLong(value);
+            } else if (option.equals("-j")) {
+                jitter = Long.parseLong(value);
+            } else if (option.equals("-b")) {
+                bandwidth = Long.parseLong(value);
+            } else if (option.equals("-e")) {
+                errorRate = Double.parseDouble(value);
+            } else if (option.equals("-r")) {
+                resetRate = Double.parseDouble(value);
+            } else if (option.equals("-t")) {
+                truncateRate = Double.parseDouble(value);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency=%d+-%d ms, bandwidth=%s, errors=%.2f, resets=%.2f,"
+                + " truncated=%.2f", latency, jitter,
+                bandwidth > 0 ? bandwidth + " B/s" : "unlimited",
+                errorRate, resetRate, truncateRate);
+        }
+    }
+
+    /**
+     * Size of body chunks, throttling sleeps between chunks.
+     */
+    private static final int CHUNK = 4096;
+
+    private final File directory;
+
+    private final Conditions conditions;
+
+    private final Random random = new Random();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong resetCount = new AtomicLong();
+    private final AtomicLong truncatedCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    public ReplayServer(File directory, Conditions conditions) {
+        this.directory = directory;
+        this.conditions = conditions;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8081;
+        Conditions conditions = new Conditions();
+        File directory = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-p")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].startsWith("-") && i + 1 < args.length
+                    && conditions.parse(args[i], args[i + 1])) {
+                i++;
+            } else {
+                directory = new File(args[i]);
+            }
+        }
+        if (directory == null || !directory.isDirectory()) {
+            System.err.println("No page directory provided, see class documentation for usage.");
+            System.exit(1);
+        }
+        HttpServer server = start(new InetSocketAddress(port), directory, conditions);
+        System.out.println("Replaying " + directory + " on port "
+            + server.getAddress().getPort() + ", " + conditions);
+    }
+
+    /**
+     * Starts the server with a thread per connection so latency of one request does not
+     * delay the others.
+     *
+     * @param address address to listen on, port 0 picks a free port
+     * @param directory directory with recorded pages
+     * @param conditions simulated network conditions
+     * @return running server
+     */
+    public static HttpServer start(InetSocketAddress address, File directory,
+            Conditions conditions) throws IOException {
+        return start(address, new ReplayServer(directory, conditions));
+    }
+
+    /**
+     * Same as {@link #start(InetSocketAddress, File, Conditions)} with the handler
+     * created by caller, so its counters can be read.
+     */
+    public static HttpServer start(InetSocketAddress address, ReplayServer handler)
+            throws IOException {
+        HttpServer server = HttpServer.create(address, 1024);
+        server.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                // server dispatcher keeps a standalone process alive, not the workers
+                Thread thread = new Thread(runnable, "replay");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+        server.createContext("/", handler);
+        server.start();
+        return server;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (exchange.getRequestURI().getPath().equals("/stats")) {
+                byte[] body = toString().getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                return;
+            }
+            requestCount.incrementAndGet();
+            sleep(conditions.latency + (conditions.jitter > 0
+                ? (long) (random.nextDouble() * conditions.jitter) : 0));
+
+            if (chance(conditions.resetRate)) {
+                resetCount.incrementAndGet();
+                // closing without headers makes the client see a dropped connection
+                return;
+            }
+            if (chance(conditions.errorRate)) {
+                errorCount.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            File file = getPage(exchange.getRequestURI().getRawQuery());
+            if (file == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            String etag = "\"" + Long.toHexString(file.lastModified()) + "-"
+                + Long.toHexString(file.length()) + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModifiedCount.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            boolean truncate = chance(conditions.truncateRate);
+            if (truncate) {
+                truncatedCount.incrementAndGet();
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, file.length());
+            send(file, exchange.getResponseBody(), truncate ? file.length() / 2 : file.length());
+        } catch (IOException ex) {
+            // client went away or the body was truncated on purpose
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private File getPage(String query) {
+        File file = new File(directory, (query == null ? "default" : query) + ".html");
+        if (query != null && query.indexOf('/') < 0 && file.isFile()) {
+            return file;
+        }
+        file = new File(directory, "default.html");
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Copies the first bytes of the file throttled to {@link Conditions#bandwidth}.
+     */
+    private void send(File file, OutputStream out, long length) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[CHUNK];
+            long sent = 0;
+            long start = System.currentTimeMillis();
+            while (sent < length) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - sent));
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                out.flush();
+                sent += read;
+                bytesSent.addAndGet(read);
+                if (conditions.bandwidth > 0) {
+                    sleep(sent * 1000 / conditions.bandwidth - (System.currentTimeMillis() - start));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean chance(double rate) {
+        return rate > 0 && random.nextDouble() < rate;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("requests=%d, errors=%d, resets=%d, truncated=%d, not modified=%d,"
+            + " sent=%d bytes, %s", requestCount.get(), errorCount.get(), resetCount.get(),
+            truncatedCount.get(), notModifiedCount.get(), bytesSent.get(), conditions);
+    }
+}
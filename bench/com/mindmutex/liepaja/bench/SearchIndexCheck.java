@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja.bench;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mindmutex.liepaja.Event;
+import com.mindmutex.liepaja.EventCache;
+import com.mindmutex.liepaja.SearchIndex;
+
+/**
+ * Checks {@link SearchIndex} while days are replaced often enough to compact the index,
+ * including days without any event.
+ * <p>
+ * Runs on desktop JVM with <i>src</i> and <i>gen</i> on the class path:
+ * <pre>
+ * java com.mindmutex.liepaja.bench.SearchIndexCheck
+ * </pre>
+ * Prints failed checks and exits with status 1 if any failed.
+ */
+public class SearchIndexCheck {
+
+    /**
+     * More events than removed documents needed to compact, see {@link SearchIndex}.
+     */
+    private static final int LARGE_DAY = 1100;
+
+    private final EventCache cache = new EventCache(null, 64, 0);
+
+    private int checks;
+
+    private int failures;
+
+    public static void main(String[] args) {
+        SearchIndexCheck check = new SearchIndexCheck();
+        check.run();
+        System.out.println(check.checks + " checks, " + check.failures + " failed");
+        System.exit(check.failures > 0 ? 1 : 0);
+    }
+
+    public void run() {
+        checkEmptyDayLast();
+        checkEmptyDayBeforeRemoved();
+        checkRepeatedUpdates();
+    }
+
+    /**
+     * Empty day indexed last has no document after it when the index is compacted.
+     */
+    private void checkEmptyDayLast() {
+        SearchIndex index = new SearchIndex();
+        try {
+            update(index, 1, createDay("kino", LARGE_DAY));
+            update(index, 2, createDay("kino", 0));
+            update(index, 1, createDay("kino", 1));
+            check(count(index, "kino") == 1, "empty last: " + count(index, "kino") + " hits");
+            index.remove(2);
+            update(index, 2, createDay("teatris", 3));
+            check(count(index, "teatris") == 3, "empty last: day indexed again not found");
+            check(count(index, "") == 4, "empty last: " + count(index, "") + " hits in total");
+        } catch (RuntimeException ex) {
+            check(false, "empty last: " + ex);
+        }
+    }
+
+    /**
+     * Empty day whose following documents are removed before the index is compacted.
+     */
+    private void checkEmptyDayBeforeRemoved() {
+        SearchIndex index = new SearchIndex();
+        try {
+            update(index, 1, createDay("kino", 0));
+            update(index, 2, createDay("kino", LARGE_DAY));
+            update(index, 3, createDay("kino", 1));
+            update(index, 2, createDay("kino", 2));
+            check(count(index, "kino") == 3, "empty before: " + count(index, "kino") + " hits");
+            index.remove(1);
+            check(!index.contains(1), "empty before: day not removed");
+            update(index, 1, createDay("opera", 5));
+            check(count(index, "opera") == 5, "empty before: day indexed again not found");
+        } catch (RuntimeException ex) {
+            check(false, "empty before: " + ex);
+        }
+    }
+
+    /**
+     * Many replacements of a few days, some of them empty, compact the index many times.
+     */
+    private void checkRepeatedUpdates() {
+        SearchIndex index = new SearchIndex();
+        try {
+            for (int round = 0; round < 5000; round++) {
+                update(index, round % 7, createDay("koncerts", (round * 31) % 5));
+            }
+            int expected = 0;
+            for (int round = 4993; round < 5000; round++) {
+                expected += (round * 31) % 5;
+            }
+            check(count(index, "konc") == expected,
+                "updates: " + count(index, "konc") + " hits instead of " + expected);
+        } catch (RuntimeException ex) {
+            check(false, "updates: " + ex);
+        }
+    }
+
+    /**
+     * Stores the day in the cache search reads events from and indexes it.
+     */
+    private void update(SearchIndex index, long dayKey, Map<String, List<Event>> events) {
+        index.update(dayKey, cache.put(dayKey, events).snapshot);
+    }
+
+    private int count(SearchIndex index, String query) {
+        SearchIndex.Filter filter = new SearchIndex.Filter();
+        filter.limit = Integer.MAX_VALUE;
+        return index.search(query, filter, cache).size();
+    }
+
+    private static Map<String, List<Event>> createDay(String word, int count) {
+        Map<String, List<Event>> events = new LinkedHashMap<String, List<Event>>();
+        if (count > 0) {
+            List<Event> category = new ArrayList<Event>(count);
+            for (int i = 0; i < count; i++) {
+                category.add(new Event("Zale " + i, word + " " + i, "19:00", -1));
+            }
+            events.put("Visi", category);
+        }
+        return events;
+    }
+
+    private void check(boolean condition, String message) {
+        checks++;
+        if (!condition) {
+            failures++;
+            System.out.println("FAIL " + message);
+        }
+    }
+}
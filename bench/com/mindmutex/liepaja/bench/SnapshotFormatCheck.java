@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.mindmutex.liepaja.DaySnapshot;
+import com.mindmutex.liepaja.Event;
+import com.mindmutex.liepaja.EventCache;
+import com.mindmutex.liepaja.SnapshotFormat;
+
+/**
+ * Checks {@link SnapshotFormat}: encoded days decode to equal snapshots and damaged
+ * data (checksum, truncation, indexes out of range) is rejected with
+ * {@link IOException} instead of producing a wrong day.
+ * <p>
+ * Runs on desktop JVM with <i>src</i> and <i>gen</i> on the class path:
+ * <pre>
+ * java com.mindmutex.liepaja.bench.SnapshotFormatCheck
+ * </pre>
+ * Prints failed checks and exits with status 1 if any failed.
+ */
+public class SnapshotFormatCheck {
+
+    /**
+     * Offsets of header fields, see {@link SnapshotFormat}.
+     */
+    private static final int VERSION_OFFSET = 4;
+    private static final int URL_OFFSET = 32;
+    private static final int STRING_COUNT_OFFSET = 40;
+    private static final int CATEGORY_COUNT_OFFSET = 44;
+    private static final int EVENT_COUNT_OFFSET = 48;
+    private static final int HEADER_SIZE = 52;
+
+    private int checks;
+
+    private int failures;
+
+    public static void main(String[] args) throws IOException {
+        SnapshotFormatCheck check = new SnapshotFormatCheck();
+        check.run();
+        System.out.println(check.checks + " checks, " + check.failures + " failed");
+        System.exit(check.failures > 0 ? 1 : 0);
+    }
+
+    public void run() throws IOException {
+        checkRoundTrip("day", createEntry(createDay()));
+        checkRoundTrip("empty day", createEntry(new LinkedHashMap<String, List<Event>>()));
+        EventCache.Entry bare = new EventCache.Entry(7, DaySnapshot.fromMap(createDay()), 0);
+        checkRoundTrip("no validators", bare);
+        checkFile();
+
+        byte[] data = SnapshotFormat.encode(createEntry(createDay()));
+        checkRejected("flipped checksum byte", flip(data, data.length - 1));
+        checkRejected("flipped data byte", flip(data, data.length - 10));
+        checkRejected("flipped magic", flip(data, 0));
+        checkRejected("other version", resign(setInt(data, VERSION_OFFSET, 99)));
+        checkRejected("empty", new byte[0]);
+        checkRejected("truncated header", copy(data, HEADER_SIZE - 1));
+        checkRejected("truncated", copy(data, data.length / 2));
+        checkRejected("truncated checksum", copy(data, data.length - 2));
+
+        int strings = getInt(data, STRING_COUNT_OFFSET);
+        int categories = getInt(data, CATEGORY_COUNT_OFFSET);
+        int events = getInt(data, EVENT_COUNT_OFFSET);
+        int categoryIndexes = HEADER_SIZE + 4 * (strings + 1);
+        int starts = categoryIndexes + 4 * categories;
+        int locations = starts + 4 * (categories + 1);
+        int timestamps = locations + 8 * events;
+        checkRejected("category index out of range",
+            resign(setInt(data, categoryIndexes, strings)));
+        checkRejected("location index out of range", resign(setInt(data, locations, strings)));
+        checkRejected("negative location index", resign(setInt(data, locations, -1)));
+        checkRejected("time index out of range",
+            resign(setInt(data, timestamps + 4 * (events - 1), Integer.MAX_VALUE)));
+        checkRejected("url index out of range", resign(setInt(data, URL_OFFSET, strings)));
+        checkRejected("category start past events", resign(setInt(data, starts + 4, events + 1)));
+        checkRejected("string count out of range",
+            resign(setInt(data, STRING_COUNT_OFFSET, Integer.MAX_VALUE / 4)));
+        checkRejected("string offset out of range",
+            resign(setInt(data, HEADER_SIZE + 4, Integer.MAX_VALUE)));
+        checkCacheDiscardsCorruptFile(flip(data, data.length - 10));
+    }
+
+    private static Map<String, List<Event>> createDay() {
+        Map<String, List<Event>> events = new LinkedHashMap<String, List<Event>>();
+        List<Event> cinema = new ArrayList<Event>();
+        cinema.add(new Event("Balle", "Filma &amp; co", "19:00"));
+        cinema.add(new Event("Balle", "Filma &amp; co", "21:30"));
+        cinema.add(new Event("Lielais dz\u0113rve", "", "dienas laik\u0101"));
+        events.put("Kino", cinema);
+        events.put("Tuk\u0161s", new ArrayList<Event>());
+        List<Event> theatre = new ArrayList<Event>();
+        theatre.add(new Event("Luga", "Pirmizr\u0101de \u20ac 5", "18.00"));
+        events.put("Te\u0101tris", theatre);
+        return events;
+    }
+
+    private static EventCache.Entry createEntry(Map<String, List<Event>> events) {
+        EventCache.Entry entry = new EventCache.Entry(1300000000L,
+            DaySnapshot.fromMap(events), 1300000123456L);
+        entry.url = "http://www.liepajniekiem.lv/afisa/?1300000000";
+        entry.etag = "\"abc\"";
+        entry.lastModified = 1299999999000L;
+        return entry;
+    }
+
+    private void checkRoundTrip(String name, EventCache.Entry entry) {
+        try {
+            EventCache.Entry decoded = SnapshotFormat.decode(
+                ByteBuffer.wrap(SnapshotFormat.encode(entry)));
+            checkEqual(name, entry, decoded);
+        } catch (IOException ex) {
+            check(false, name + ": decoding failed: " + ex);
+        }
+    }
+
+    private void checkFile() throws IOException {
+        File file = File.createTempFile("snapshot", ".snap");
+        try {
+            EventCache.Entry entry = createEntry(createDay());
+            SnapshotFormat.write(file, entry);
+            checkEqual("file", entry, SnapshotFormat.read(file));
+
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            truncated.setLength(file.length() - 5);
+            truncated.close();
+            try {
+                SnapshotFormat.read(file);
+                check(false, "truncated file: accepted");
+            } catch (IOException ex) {
+                check(true, null);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void checkCacheDiscardsCorruptFile(byte[] data) throws IOException {
+        File directory = File.createTempFile("snapshot", ".cache");
+        directory.delete();
+        EventCache cache = new EventCache(directory, 4, Long.MAX_VALUE);
+        File file = new File(directory, "1300000000.snap");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(data);
+            out.close();
+            check(cache.getEntry(1300000000L) == null, "cache: corrupt file returned as entry");
+            check(!file.exists(), "cache: corrupt file not removed");
+        } finally {
+            file.delete();
+            directory.delete();
+        }
+    }
+
+    private void checkEqual(String name, EventCache.Entry expected, EventCache.Entry actual) {
+        check(actual.dayKey == expected.dayKey, name + ": day key");
+        check(actual.storedAt == expected.storedAt, name + ": stored at");
+        check(actual.lastModified == expected.lastModified, name + ": last modified");
+        check(equal(actual.url, expected.url), name + ": url " + actual.url);
+        check(equal(actual.etag, expected.etag), name + ": etag " + actual.etag);
+
+        DaySnapshot left = expected.snapshot;
+        DaySnapshot right = actual.snapshot;
+        check(left.getCategoryCount() == right.getCategoryCount(), name + ": category count");
+        check(left.getEventCount() == right.getEventCount(), name + ": event count");
+        if (left.getCategoryCount() != right.getCategoryCount()
+                || left.getEventCount() != right.getEventCount()) {
+            return;
+        }
+        for (int group = 0; group < left.getCategoryCount(); group++) {
+            check(left.getCategory(group).equals(right.getCategory(group)),
+                name + ": category " + right.getCategory(group));
+            check(left.getStart(group) == right.getStart(group)
+                && left.getEnd(group) == right.getEnd(group), name + ": category bounds");
+        }
+        for (int i = 0; i < left.getEventCount(); i++) {
+            check(left.getLocation(i).equals(right.getLocation(i))
+                && left.getDescription(i).equals(right.getDescription(i))
+                && left.getTimestamp(i).equals(right.getTimestamp(i))
+                && left.getMinutes(i) == right.getMinutes(i),
+                name + ": event " + i + " " + right.getEvent(i));
+        }
+    }
+
+    private void checkRejected(String name, byte[] data) {
+        try {
+            SnapshotFormat.decode(ByteBuffer.wrap(data));
+            check(false, name + ": accepted");
+        } catch (IOException ex) {
+            check(true, null);
+        } catch (RuntimeException ex) {
+            check(false, name + ": failed with " + ex);
+        }
+    }
+
+    private static boolean equal(String left, String right) {
+        return left == null ? right == null : left.equals(right);
+    }
+
+    private static byte[] copy(byte[] data, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static byte[] flip(byte[] data, int position) {
+        byte[] copy = copy(data, data.length);
+        copy[position] ^= 0x01;
+        return copy;
+    }
+
+    private static int getInt(byte[] data, int position) {
+        return ByteBuffer.wrap(data).getInt(position);
+    }
+
+    private static byte[] setInt(byte[] data, int position, int value) {
+        byte[] copy = copy(data, data.length);
+        ByteBuffer.wrap(copy).putInt(position, value);
+        return copy;
+    }
+
+    /**
+     * Recomputes the checksum so only the structure checks can reject the data.
+     */
+    private static byte[] resign(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        ByteBuffer.wrap(data).putInt(data.length - 4, (int) crc.getValue());
+        return data;
+    }
+
+    private void check(boolean condition, String message) {
+        checks++;
+        if (!condition) {
+            failures++;
+            System.out.println("FAIL " + message);
+        }
+    }
+}
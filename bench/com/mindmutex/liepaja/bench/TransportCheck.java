@@ -0,0 +1,399 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.mindmutex.liepaja.ContentHandlerStatus;
+import com.mindmutex.liepaja.ContentLoader;
+import com.mindmutex.liepaja.Event;
+import com.mindmutex.liepaja.EventCache;
+import com.mindmutex.liepaja.HttpTransport;
+import com.mindmutex.liepaja.LoadMetrics;
+import com.mindmutex.liepaja.Metrics;
+import com.mindmutex.liepaja.StreamingEventParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks {@link ContentLoader} over {@link HttpTransport} against a local stub server:
+ * conditional requests and <i>304 Not Modified</i> handling, retries of server errors,
+ * decompression of <i>gzip</i> and <i>deflate</i> bodies, response charset and byte counts.
+ * <p>
+ * Runs on desktop JVM with <i>src</i> and <i>gen</i> on the class path:
+ * <pre>
+ * java com.mindmutex.liepaja.bench.TransportCheck
+ * </pre>
+ * Prints failed checks and exits with status 1 if any failed.
+ */
+public class TransportCheck {
+
+    private static final String PAGE = "<html><body><div id=\"events\"><table>"
+        + "<tr><td>Kino</td><td>Balle</td><td>19:00</td><td>Filma &amp; co</td></tr>"
+        + "<tr><td>Teatris</td><td>Luga</td><td>18:00</td><td>Pirmizr\u0101de</td></tr>"
+        + "</table></div></body></html>";
+
+    private static final String CHANGED_PAGE = PAGE.replace("Pirmizr\u0101de", "Atcelta");
+
+    /**
+     * Response served by the stub and headers of the last request it received.
+     */
+    private static class Stub implements HttpHandler {
+        volatile byte[] body;
+
+        volatile String contentType = "text/html; charset=UTF-8";
+
+        volatile String contentEncoding;
+
+        volatile String etag;
+
+        volatile long lastModified;
+
+        /**
+         * Status sent without body regardless of the request, 0 to serve normally.
+         */
+        volatile int status;
+
+        /**
+         * Number of following requests answered with <i>503</i> and a short body.
+         */
+        volatile int serverErrors;
+
+        volatile int requestCount;
+
+        volatile String ifNoneMatch;
+
+        volatile String ifModifiedSince;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                requestCount++;
+                ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+                if (status > 0) {
+                    exchange.sendResponseHeaders(status, -1);
+                    return;
+                }
+                if (serverErrors > 0) {
+                    serverErrors--;
+                    byte[] busy = "busy".getBytes("UTF-8");
+                    exchange.sendResponseHeaders(503, busy.length);
+                    exchange.getResponseBody().write(busy);
+                    return;
+                }
+                if (etag != null) {
+                    exchange.getResponseHeaders().set("ETag", etag);
+                }
+                if (lastModified > 0) {
+                    exchange.getResponseHeaders().set("Last-Modified", formatDate(lastModified));
+                }
+                boolean notModified = etag != null ? etag.equals(ifNoneMatch)
+                    : lastModified > 0 && formatDate(lastModified).equals(ifModifiedSince);
+                if (notModified) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                if (contentType != null) {
+                    exchange.getResponseHeaders().set("Content-Type", contentType);
+                }
+                if (contentEncoding != null) {
+                    exchange.getResponseHeaders().set("Content-Encoding", contentEncoding);
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Outcome of one synchronous load.
+     */
+    private static class Load {
+        ContentLoader loader;
+
+        Map<String, List<Event>> events;
+
+        String error;
+    }
+
+    private final Stub stub = new Stub();
+
+    private final long dayKey = ContentLoader.getDayKey(Calendar.getInstance());
+
+    private String site;
+
+    /**
+     * Retries of the transport used by {@link #load(EventCache)}.
+     */
+    private int retries;
+
+    private int checks;
+
+    private int failures;
+
+    public static void main(String[] args) throws IOException {
+        TransportCheck check = new TransportCheck();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", check.stub);
+        server.start();
+        try {
+            check.site = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+            Metrics.setEnabled(true);
+            check.run();
+        } finally {
+            server.stop(0);
+        }
+        System.out.println(check.checks + " checks, " + check.failures + " failed");
+        System.exit(check.failures > 0 ? 1 : 0);
+    }
+
+    public void run() throws IOException {
+        checkEtagRevalidation();
+        checkLastModifiedRevalidation();
+        checkFreshEntry();
+        checkUnexpectedNotModified();
+        checkServerErrorRetry();
+        checkEncoding("gzip", gzip(PAGE.getBytes("UTF-8")));
+        checkEncoding("deflate", deflate(PAGE.getBytes("UTF-8"), false));
+        checkEncoding("deflate", deflate(PAGE.getBytes("UTF-8"), true));
+        checkCharset("text/html; charset=windows-1257", "windows-1257");
+        checkCharset("text/html; charset=\"ISO-8859-13\"", "ISO-8859-13");
+        checkCharset("text/html", "UTF-8");
+        checkCharset(null, "UTF-8");
+        checkCharset("text/html; charset=no-such-charset", "UTF-8");
+    }
+
+    private void checkEtagRevalidation() throws IOException {
+        serve(PAGE, "\"v1\"", 0);
+        EventCache cache = new EventCache(null, 4, 0);
+
+        Load first = load(cache);
+        check(first.error == null, "etag: first load failed: " + first.error);
+        check(stub.ifNoneMatch == null, "etag: first load sent If-None-Match");
+        check("\"v1\"".equals(cache.getEntry(dayKey).etag), "etag: validator not stored");
+        long storedAt = cache.getEntry(dayKey).storedAt;
+
+        sleep(5);
+        Load second = load(cache);
+        check("\"v1\"".equals(stub.ifNoneMatch), "etag: If-None-Match not sent");
+        check(second.error == null, "etag: revalidation failed: " + second.error);
+        check(String.valueOf(first.events).equals(String.valueOf(second.events)),
+            "etag: 304 did not deliver cached events");
+        check(!second.loader.getDelta().hasChanges(), "etag: 304 reported changes");
+        check(LoadMetrics.SOURCE_NOT_MODIFIED.equals(second.loader.getMetrics().getSource()),
+            "etag: source is " + second.loader.getMetrics().getSource());
+        check(cache.getEntry(dayKey).storedAt > storedAt, "etag: entry not refreshed by 304");
+
+        serve(CHANGED_PAGE, "\"v2\"", 0);
+        Load third = load(cache);
+        check(third.error == null, "etag: changed load failed: " + third.error);
+        check(String.valueOf(third.events).indexOf("Atcelta") >= 0,
+            "etag: changed page not delivered");
+        check(third.loader.getDelta().getChanged().length == 1,
+            "etag: expected one changed row, got " + third.loader.getDelta());
+        check("\"v2\"".equals(cache.getEntry(dayKey).etag), "etag: new validator not stored");
+    }
+
+    private void checkLastModifiedRevalidation() throws IOException {
+        serve(PAGE, null, 1300000000000L);
+        EventCache cache = new EventCache(null, 4, 0);
+
+        Load first = load(cache);
+        check(first.error == null, "last-modified: first load failed: " + first.error);
+        check(cache.getEntry(dayKey).lastModified == 1300000000000L,
+            "last-modified: validator not stored");
+
+        int requests = stub.requestCount;
+        Load second = load(cache);
+        check(stub.requestCount == requests + 1, "last-modified: no request made");
+        check(stub.ifModifiedSince != null, "last-modified: If-Modified-Since not sent");
+        check(second.error == null, "last-modified: revalidation failed: " + second.error);
+        check(LoadMetrics.SOURCE_NOT_MODIFIED.equals(second.loader.getMetrics().getSource()),
+            "last-modified: source is " + second.loader.getMetrics().getSource());
+    }
+
+    private void checkFreshEntry() throws IOException {
+        serve(PAGE, "\"v1\"", 0);
+        EventCache cache = new EventCache(null, 4, 60000);
+        load(cache);
+
+        int requests = stub.requestCount;
+        Load second = load(cache);
+        check(stub.requestCount == requests, "fresh: request made for fresh entry");
+        check(LoadMetrics.SOURCE_CACHE.equals(second.loader.getMetrics().getSource()),
+            "fresh: source is " + second.loader.getMetrics().getSource());
+    }
+
+    private void checkUnexpectedNotModified() throws IOException {
+        serve(PAGE, "\"v1\"", 0);
+        stub.status = 304;
+        Load load = load(new EventCache(null, 4, 0));
+        stub.status = 0;
+        check(load.error != null && load.events == null,
+            "no entry: 304 without cached day did not fail");
+    }
+
+    private void checkServerErrorRetry() throws IOException {
+        serve(PAGE, null, 0);
+        retries = 2;
+        stub.serverErrors = 2;
+        int requests = stub.requestCount;
+        Load load = load(null);
+        check(load.error == null, "503: load not retried: " + load.error);
+        check(stub.requestCount == requests + 3, "503: " + (stub.requestCount - requests)
+            + " requests instead of 3");
+
+        stub.serverErrors = 3;
+        load = load(null);
+        stub.serverErrors = 0;
+        retries = 0;
+        check(load.error != null && load.events == null, "503: retries not limited");
+    }
+
+    private void checkEncoding(String encoding, byte[] body) throws IOException {
+        String name = encoding + " " + body.length + " bytes";
+        serve(PAGE, null, 0);
+        Load expected = load(null);
+
+        stub.body = body;
+        stub.contentEncoding = encoding;
+        Load load = load(null);
+        stub.contentEncoding = null;
+        check(load.error == null, name + ": load failed: " + load.error);
+        check(String.valueOf(expected.events).equals(String.valueOf(load.events)),
+            name + ": decoded events differ: " + load.events);
+        check(load.loader.getBytesReceived() == body.length,
+            name + ": received " + load.loader.getBytesReceived());
+        check(load.loader.getBytesDecoded() == PAGE.getBytes("UTF-8").length,
+            name + ": decoded " + load.loader.getBytesDecoded());
+    }
+
+    private void checkCharset(String contentType, String charset) throws IOException {
+        String name = "charset " + contentType;
+        serve(PAGE, null, 0);
+        stub.body = PAGE.getBytes(charset);
+        stub.contentType = contentType;
+        Load load = load(null);
+        check(load.error == null, name + ": load failed: " + load.error);
+        check(String.valueOf(load.events).indexOf("Pirmizr\u0101de") >= 0,
+            name + ": text not decoded as " + charset + ": " + load.events);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param raw true for raw deflate data some servers send instead of zlib format
+     */
+    private static byte[] deflate(byte[] data, boolean raw) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes,
+            new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private void serve(String page, String etag, long lastModified) throws IOException {
+        stub.body = page.getBytes("UTF-8");
+        stub.contentType = "text/html; charset=UTF-8";
+        stub.etag = etag;
+        stub.lastModified = lastModified;
+    }
+
+    private Load load(EventCache cache) {
+        Load load = new Load();
+        ContentLoader loader = createLoader(load);
+        loader.setCache(cache);
+        loader.run();
+        return load;
+    }
+
+    private ContentLoader createLoader(Load load) {
+        ContentLoader loader = new ContentLoader(site, capture(load));
+        loader.setTransport(new HttpTransport(2000, 2000, retries, 1));
+        loader.setParser(new StreamingEventParser());
+        loader.setCalendar(ContentLoader.getDay(dayKey));
+        load.loader = loader;
+        return loader;
+    }
+
+    private static ContentHandlerStatus capture(final Load load) {
+        return new ContentHandlerStatus() {
+            @Override
+            public void onComplete(Map<String, List<Event>> events) {
+                load.events = events;
+            }
+
+            @Override
+            public void onError(int errorCode, String message) {
+                load.error = message != null ? message : "error " + Integer.toHexString(errorCode);
+            }
+        };
+    }
+
+    private void check(boolean condition, String message) {
+        checks++;
+        if (!condition) {
+            failures++;
+            System.out.println("FAIL " + message);
+        }
+    }
+
+    private static String formatDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+            Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja.bench;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.htmlcleaner.ContentNode;
+import org.htmlcleaner.HtmlCleaner;
+import org.htmlcleaner.TagNode;
+import org.htmlcleaner.XPatherException;
+
+import com.mindmutex.liepaja.Event;
+import com.mindmutex.liepaja.EventParser;
+import com.mindmutex.liepaja.ExtractionPlan;
+
+/**
+ * Baseline for {@link ParserBenchmark}: HtmlCleaner DOM filtered by evaluating the
+ * XPath expression on every parse, as done before {@link ExtractionPlan} was introduced.
+ * Supports the default layout only.
+ */
+public class XPathEventParser implements EventParser {
+
+    private final HtmlCleaner htmlCleaner = new HtmlCleaner();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<String, List<Event>> parse(Reader reader, CategoryListener listener)
+            throws IOException {
+        Map<String, List<Event>> events = new LinkedHashMap<String, List<Event>>();
+
+        TagNode root = htmlCleaner.clean(reader);
+
+        Object[] nodes;
+        try {
+            nodes = root.evaluateXPath("//div[@id='events']//tr");
+        } catch (XPatherException ex) {
+            IOException exception = new IOException(ex.getMessage());
+            exception.initCause(ex);
+            throw exception;
+        }
+        if (nodes == null) {
+            throw new IllegalStateException();
+        }
+
+        String category = null;
+        for (Object object : nodes) {
+            List<Object> children = ((TagNode) object).getChildren();
+            if (children.size() != 4 || (children.size() > 0
+                    && children.get(0).toString().equals("th"))) {
+                continue;
+            }
+            String tempCategory = getText(children.get(0));
+            if (!tempCategory.equals("&nbsp;")) {
+                category = tempCategory;
+                if (!events.containsKey(category)) {
+                    events.put(category, new ArrayList<Event>());
+                }
+            }
+            if (category == null) {
+                continue;
+            }
+            events.get(category).add(new Event(
+                getText(children.get(1)),
+                getText(children.get(3)),
+                getText(children.get(2))));
+        }
+        return events;
+    }
+
+    private static String getText(Object node) {
+        if (node instanceof TagNode) {
+            return ((TagNode) node).getText().toString();
+        }
+        if (node instanceof ContentNode) {
+            return ((ContentNode) node).getContent().toString();
+        }
+        throw new IllegalStateException("Unexpected node type");
+    }
+}
@@ -8,37 +8,115 @@
 package com.mindmutex.liepaja;
 
 public final class R {
+    public static final class array {
+        public static final int parser_names=0x7f080000;
+        public static final int parser_values=0x7f080001;
+        public static final int time_of_day_names=0x7f080002;
+    }
     public static final class attr {
     }
     public static final class drawable {
         public static final int icon=0x7f020000;
     }
     public static final class id {
+        public static final int category=0x7f070005;
+        public static final int clear=0x7f07000c;
         public static final int date=0x7f070002;
         public static final int description=0x7f070000;
+        public static final int export=0x7f07000b;
+        public static final int export_ics=0x7f070011;
+        public static final int export_json=0x7f070012;
+        public static final int metrics=0x7f07000a;
+        public static final int month=0x7f07000d;
         public static final int name=0x7f070001;
+        public static final int next=0x7f07000e;
+        public static final int previous=0x7f07000f;
+        public static final int query=0x7f070006;
         public static final int refresh=0x7f070003;
+        public static final int search=0x7f070007;
         public static final int settings=0x7f070004;
+        public static final int time_of_day=0x7f070008;
+        public static final int timeline=0x7f070009;
+        public static final int totals=0x7f070010;
     }
     public static final class layout {
         public static final int main=0x7f030000;
         public static final int main_header=0x7f030001;
+        public static final int metrics=0x7f030003;
+        public static final int month=0x7f030004;
+        public static final int search=0x7f030002;
     }
     public static final class menu {
         public static final int main=0x7f060000;
+        public static final int metrics=0x7f060001;
+        public static final int month=0x7f060002;
     }
     public static final class string {
         public static final int app_name=0x7f050000;
+        public static final int category_cache=0x7f05000b;
+        public static final int category_debug=0x7f05002f;
         public static final int category_site=0x7f050008;
+        public static final int category_sync=0x7f050019;
         public static final int date=0x7f050003;
         public static final int error_nodes_empty=0x7f050005;
         public static final int error_nodes_general=0x7f050006;
+        public static final int export_failed=0x7f050040;
+        public static final int export_ics=0x7f05003e;
+        public static final int export_json=0x7f05003f;
+        public static final int metrics_clear=0x7f050034;
+        public static final int metrics_empty=0x7f050035;
+        public static final int metrics_export=0x7f050033;
+        public static final int month=0x7f050036;
+        public static final int month_events=0x7f050037;
+        public static final int month_total=0x7f050039;
+        public static final int month_unknown=0x7f050038;
         public static final int ok=0x7f050007;
+        public static final int preference_cache_size=0x7f05000e;
+        public static final int preference_cache_size_descr=0x7f05000f;
+        public static final int preference_cache_stats=0x7f050010;
+        public static final int preference_cache_ttl=0x7f05000c;
+        public static final int preference_cache_ttl_descr=0x7f05000d;
+        public static final int preference_connect_timeout=0x7f050022;
+        public static final int preference_connect_timeout_descr=0x7f050023;
+        public static final int preference_extraction_plan=0x7f050028;
+        public static final int preference_extraction_plan_descr=0x7f050029;
+        public static final int preference_metrics=0x7f050032;
+        public static final int preference_metrics_enabled=0x7f050030;
+        public static final int preference_metrics_enabled_descr=0x7f050031;
+        public static final int preference_network_retries=0x7f050026;
+        public static final int preference_network_retries_descr=0x7f050027;
+        public static final int preference_parser=0x7f050011;
+        public static final int preference_parser_descr=0x7f050012;
+        public static final int preference_prefetch_threads=0x7f050015;
+        public static final int preference_prefetch_threads_descr=0x7f050016;
+        public static final int preference_prefetch_window=0x7f050013;
+        public static final int preference_prefetch_window_descr=0x7f050014;
+        public static final int preference_read_timeout=0x7f050024;
+        public static final int preference_read_timeout_descr=0x7f050025;
         public static final int preference_site_url=0x7f050009;
         public static final int preference_site_url_descr=0x7f05000a;
+        public static final int preference_source_deadline=0x7f05003c;
+        public static final int preference_source_deadline_descr=0x7f05003d;
+        public static final int preference_sources=0x7f05003a;
+        public static final int preference_sources_descr=0x7f05003b;
+        public static final int preference_stale_startup=0x7f050017;
+        public static final int preference_stale_startup_descr=0x7f050018;
+        public static final int preference_sync_charging_only=0x7f050021;
+        public static final int preference_sync_days=0x7f05001e;
+        public static final int preference_sync_days_descr=0x7f05001f;
+        public static final int preference_sync_enabled=0x7f05001a;
+        public static final int preference_sync_enabled_descr=0x7f05001b;
+        public static final int preference_sync_interval=0x7f05001c;
+        public static final int preference_sync_interval_descr=0x7f05001d;
+        public static final int preference_sync_wifi_only=0x7f050020;
         public static final int refresh=0x7f050001;
         public static final int refresh_loading=0x7f050002;
+        public static final int search=0x7f05002a;
+        public static final int search_any_category=0x7f05002c;
+        public static final int search_empty=0x7f05002d;
+        public static final int search_hint=0x7f05002b;
         public static final int settings=0x7f050004;
+        public static final int timeline=0x7f05002e;
     }
     public static final class xml {
         public static final int preference=0x7f040000;
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Calendar;
+import java.util.concurrent.Executors;
+
+import com.mindmutex.liepaja.ContentLoader;
+import com.mindmutex.liepaja.ExtractionPlan;
+import com.mindmutex.liepaja.FileTransport;
+import com.mindmutex.liepaja.HttpTransport;
+import com.mindmutex.liepaja.SnapshotFormat;
+import com.mindmutex.liepaja.Transport;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP service extracting each day from the site once and serving it to any number of
+ * clients as {@link SnapshotFormat#CONTENT_TYPE} with an ETag. The application uses it
+ * when <i>site_url</i> preference points to the service, requests have the same form as
+ * requests to the site, the day key in query string.
+ * <p>
+ * Runs on desktop JVM with <i>src</i>, <i>gen</i> and HtmlCleaner on the class path:
+ * <pre>
+ * java com.mindmutex.liepaja.server.ScheduleServer [-p port] [-t threads] [-e ttl seconds]
+ *      [-m days] [-r parser] [-x plan] [-u upstream URL | -d directory]
+ * </pre>
+ * Option <i>-d</i> serves pages saved in a directory instead of the site (see
+ * {@link FileTransport}) so the service can be load tested on one machine. Path
+ * <i>/stats</i> returns counters as text.
+ */
+public class ScheduleServer implements HttpHandler {
+
+    private static final String DEFAULT_UPSTREAM =
+        "http://www.liepajniekiem.lv/lat/afisas-kalendars/";
+
+    /**
+     * Days further than this from today are refused so clients can not make the
+     * service load arbitrary pages.
+     */
+    private static final long MAX_DAYS_AWAY = 400;
+
+    private final ScheduleStore store;
+
+    public ScheduleServer(ScheduleStore store) {
+        this.store = store;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        int threads = 16;
+        long ttl = 15 * 60;
+        int maxDays = 400;
+        String parser = "streaming";
+        ExtractionPlan plan = ExtractionPlan.getDefault();
+        String upstream = DEFAULT_UPSTREAM;
+        Transport transport = new HttpTransport();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-p")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-t")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-e")) {
+                ttl = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-m")) {
+                maxDays = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-r")) {
+                parser = args[++i];
+            } else if (args[i].equals("-x")) {
+                plan = ExtractionPlan.compile(args[++i]);
+            } else if (args[i].equals("-u")) {
+                upstream = args[++i];
+            } else if (args[i].equals("-d")) {
+                upstream = "file:///";
+                transport = new FileTransport(new File(args[++i]));
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        ScheduleStore store = new ScheduleStore(upstream, transport, parser, plan,
+            ttl * 1000, maxDays);
+        HttpServer server = start(new InetSocketAddress(port), store, threads);
+        System.out.println("Serving " + upstream + " on port "
+            + server.getAddress().getPort());
+    }
+
+    /**
+     * Starts the service.
+     *
+     * @param address address to listen on, port 0 picks a free port
+     * @param store days served
+     * @param threads number of threads handling requests
+     * @return running server
+     */
+    public static HttpServer start(InetSocketAddress address, ScheduleStore store,
+            int threads) throws IOException {
+        HttpServer server = HttpServer.create(address, 256);
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.createContext("/", new ScheduleServer(store));
+        server.start();
+        return server;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                send(exchange, 405, "Method not allowed");
+                return;
+            }
+            if (exchange.getRequestURI().getPath().equals("/stats")) {
+                send(exchange, 200, store.toString());
+                return;
+            }
+
+            long dayKey;
+            try {
+                dayKey = Long.parseLong(exchange.getRequestURI().getRawQuery());
+            } catch (NumberFormatException ex) {
+                send(exchange, 400, "Query must be a day key");
+                return;
+            }
+            if (!isValid(dayKey)) {
+                send(exchange, 404, "Day out of range");
+                return;
+            }
+
+            ScheduleStore.Schedule schedule;
+            try {
+                schedule = store.get(dayKey);
+            } catch (IOException ex) {
+                send(exchange, 502, ex.getMessage());
+                return;
+            }
+            respond(exchange, schedule, method.equals("HEAD"));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Sends the day or <i>304 Not Modified</i> if the client has the same version.
+     */
+    private void respond(HttpExchange exchange, ScheduleStore.Schedule schedule, boolean head)
+            throws IOException {
+        Headers request = exchange.getRequestHeaders();
+        Headers response = exchange.getResponseHeaders();
+        response.set("ETag", schedule.etag);
+        response.set("Vary", "Accept-Encoding");
+        response.set("Cache-Control", "no-cache");
+
+        String match = request.getFirst("If-None-Match");
+        if (match != null && match.contains(schedule.etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        byte[] body = schedule.bytes;
+        String encoding = request.getFirst("Accept-Encoding");
+        if (encoding != null && encoding.toLowerCase().contains("gzip")) {
+            body = schedule.gzip;
+            response.set("Content-Encoding", "gzip");
+        }
+        response.set("Content-Type", SnapshotFormat.CONTENT_TYPE);
+        if (head) {
+            response.set("Content-Length", String.valueOf(body.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * @return true if the key is the start of a day within {@link #MAX_DAYS_AWAY}
+     */
+    private static boolean isValid(long dayKey) {
+        Calendar day = ContentLoader.getDay(dayKey);
+        if (ContentLoader.getDayKey(day) != dayKey) {
+            return false;
+        }
+        long today = ContentLoader.getDayKey(Calendar.getInstance());
+        return Math.abs(dayKey - today) <= MAX_DAYS_AWAY * 24 * 60 * 60;
+    }
+
+    private static void send(HttpExchange exchange, int status, String text)
+            throws IOException {
+        byte[] body = text.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.mindmutex.liepaja.ContentHandlerStatus;
+import com.mindmutex.liepaja.ContentLoader;
+import com.mindmutex.liepaja.DayDelta;
+import com.mindmutex.liepaja.DaySnapshot;
+import com.mindmutex.liepaja.Event;
+import com.mindmutex.liepaja.EventCache;
+import com.mindmutex.liepaja.ExtractionPlan;
+import com.mindmutex.liepaja.SnapshotFormat;
+import com.mindmutex.liepaja.Transport;
+
+/**
+ * Days extracted from the site kept in memory already encoded by {@link SnapshotFormat},
+ * plain and gzip compressed, so requests are served without any per request work.
+ * <p>
+ * Each day is loaded from upstream at most once at a time however many clients ask for
+ * it. Expired days are revalidated with a conditional request and keep their encoding
+ * and ETag when the content did not change. If upstream fails the expired day is served.
+ * <p>
+ * Every day is extracted into a snapshot with its own string table, so strings of
+ * evicted days are released with them and the heap does not grow with the number of
+ * days ever served.
+ */
+public class ScheduleStore {
+
+    /**
+     * Encoded day ready to be sent.
+     */
+    public static class Schedule {
+        public final long dayKey;
+
+        public final DaySnapshot snapshot;
+
+        public final byte[] bytes;
+
+        public final byte[] gzip;
+
+        /**
+         * Quoted entity tag derived from the content.
+         */
+        public final String etag;
+
+        /**
+         * Time in milliseconds when upstream last confirmed the content.
+         */
+        volatile long loadedAt;
+
+        Schedule(long dayKey, DaySnapshot snapshot, long loadedAt) throws IOException {
+            this.dayKey = dayKey;
+            this.snapshot = snapshot;
+            this.loadedAt = loadedAt;
+
+            // without time and validators the encoding only depends on the content
+            this.bytes = SnapshotFormat.encode(new EventCache.Entry(dayKey, snapshot, 0));
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2);
+            GZIPOutputStream out = new GZIPOutputStream(compressed);
+            out.write(bytes);
+            out.close();
+            this.gzip = compressed.toByteArray();
+
+            long hash = Event.HASH_SEED;
+            for (byte value : bytes) {
+                hash = (hash ^ (value & 0xff)) * 0x100000001b3L;
+            }
+            this.etag = "\"" + Long.toHexString(hash) + "\"";
+        }
+
+        public long getLoadedAt() {
+            return loadedAt;
+        }
+    }
+
+    private final String upstream;
+
+    private final Transport transport;
+
+    private final String parser;
+
+    private final ExtractionPlan plan;
+
+    /**
+     * Time to live of a day in milliseconds.
+     */
+    private final long ttl;
+
+    private final int maxDays;
+
+    private final ConcurrentHashMap<Long, Schedule> schedules =
+        new ConcurrentHashMap<Long, Schedule>();
+
+    private final ConcurrentHashMap<Long, FutureTask<Schedule>> loads =
+        new ConcurrentHashMap<Long, FutureTask<Schedule>>();
+
+    /**
+     * Holds upstream validators of each day, memory only.
+     */
+    private final EventCache cache;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+
+    /**
+     * @param upstream site URL, day key is appended as query string
+     * @param transport transport used to reach upstream
+     * @param parser parser name, see {@link ContentLoader#createParser(String, ExtractionPlan)}
+     * @param plan extraction plan
+     * @param ttl time to live of a day in milliseconds
+     * @param maxDays number of days kept in memory
+     */
+    public ScheduleStore(String upstream, Transport transport, String parser,
+            ExtractionPlan plan, long ttl, int maxDays) {
+        this.upstream = upstream;
+        this.transport = transport;
+        this.parser = parser;
+        this.plan = plan;
+        this.ttl = ttl;
+        this.maxDays = maxDays;
+        this.cache = new EventCache(null, maxDays, ttl);
+    }
+
+    /**
+     * Returns the day, loading it from upstream if it is missing or expired. Concurrent
+     * callers asking for the same day wait for a single load.
+     *
+     * @param dayKey day key, see {@link ContentLoader#getDayKey(java.util.Calendar)}
+     * @return encoded day
+     * @throws IOException if the day is not stored and upstream fails
+     */
+    public Schedule get(final long dayKey) throws IOException {
+        requestCount.incrementAndGet();
+        Schedule schedule = schedules.get(dayKey);
+        if (schedule != null && System.currentTimeMillis() - schedule.loadedAt < ttl) {
+            return schedule;
+        }
+
+        FutureTask<Schedule> task = new FutureTask<Schedule>(new Callable<Schedule>() {
+            @Override
+            public Schedule call() throws IOException {
+                return load(dayKey);
+            }
+        });
+        FutureTask<Schedule> running = loads.putIfAbsent(dayKey, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loads.remove(dayKey, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException ex) {
+            if (schedule != null) {
+                staleCount.incrementAndGet();
+                return schedule;
+            }
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            IOException error = new IOException(String.valueOf(ex.getCause()));
+            error.initCause(ex.getCause());
+            throw error;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    /**
+     * Loads the day from upstream, conditionally if it was loaded before.
+     */
+    private Schedule load(long dayKey) throws IOException {
+        loadCount.incrementAndGet();
+        final String[] error = new String[1];
+        ContentLoader loader = new ContentLoader(upstream, new ContentHandlerStatus() {
+            @Override
+            public void onComplete(Map<String, List<Event>> events) {
+            }
+
+            @Override
+            public void onError(int errorCode, String message) {
+                error[0] = message != null ? message : "Nothing extracted";
+            }
+        });
+        loader.setCalendar(ContentLoader.getDay(dayKey));
+        loader.setParser(ContentLoader.createParser(parser, plan));
+        loader.setTransport(transport);
+        loader.setCache(cache);
+        // expiry is decided by the store, upstream is asked every time
+        loader.setForceRefresh(true);
+        loader.run();
+
+        DayDelta delta = loader.getDelta();
+        if (error[0] != null || delta == null) {
+            errorCount.incrementAndGet();
+            throw new IOException(loader.getUrl() + ": " + error[0]);
+        }
+
+        long now = System.currentTimeMillis();
+        Schedule previous = schedules.get(dayKey);
+        if (previous != null && !delta.hasChanges()) {
+            notModifiedCount.incrementAndGet();
+            previous.loadedAt = now;
+            return previous;
+        }
+        Schedule schedule = new Schedule(dayKey, delta.getCurrent(), now);
+        schedules.put(dayKey, schedule);
+        evict();
+        return schedule;
+    }
+
+    /**
+     * Removes least recently loaded days above {@link #maxDays}.
+     */
+    private void evict() {
+        while (schedules.size() > maxDays) {
+            Schedule eldest = null;
+            for (Schedule schedule : schedules.values()) {
+                if (eldest == null || schedule.loadedAt < eldest.loadedAt) {
+                    eldest = schedule;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            schedules.remove(eldest.dayKey, eldest);
+        }
+    }
+
+    public int size() {
+        return schedules.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("requests=%d, loads=%d (not modified %d, failed %d),"
+            + " stale=%d, days=%d, upstream cache: %s",
+            requestCount.get(), loadCount.get(), notModifiedCount.get(), errorCount.get(),
+            staleCount.get(), schedules.size(), cache);
+    }
+}
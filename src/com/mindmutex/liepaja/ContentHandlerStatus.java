@@ -29,6 +29,16 @@ import java.util.Map;
  * request successfully completes or fails.
  */
 public interface ContentHandlerStatus {
+
+    /**
+     * Error code when the content could not be loaded or parsed.
+     */
+    int ERROR_GENERAL = 1;
+
+    /**
+     * Error code when the page was loaded but no events were found in it.
+     */
+    int ERROR_EMPTY = 2;
     
     /**
      * Method called when the request is successful.
@@ -41,7 +51,7 @@ public interface ContentHandlerStatus {
     /**
      * Method called when fails to extract events from HTML provided or other.
      *
-     * @param errorCode provides resource code ({@link R}) explaining the error
+     * @param errorCode {@link #ERROR_GENERAL} or {@link #ERROR_EMPTY}
      * @param message optional exception message
      */
     void onError(int errorCode, String message);
@@ -21,25 +21,46 @@
  */
 package com.mindmutex.liepaja;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.URL;
-import java.net.URLConnection;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
-
-import org.htmlcleaner.ContentNode;
-import org.htmlcleaner.HtmlCleaner;
-import org.htmlcleaner.TagNode;
-import org.htmlcleaner.XPatherException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Opens a connection to site provided in constructor and attempts to extract event information
  * from HTML provided in connection response.
+ * <p>
+ * Responses of type {@link SnapshotFormat#CONTENT_TYPE}, served by a proxy that already
+ * extracted the day, are decoded without parsing.
+ * <p>
+ * Additional {@link EventSource}s are fetched in parallel with the site and merged into
+ * its events. A source failing or exceeding the deadline is left out, the load only
+ * fails when every source fails.
  */
 public class ContentLoader implements Runnable {
     
@@ -49,9 +70,9 @@ public class ContentLoader implements Runnable {
     private ContentHandlerStatus handler = null;
 
     /**
-     * {@link HtmlCleaner} used to filter out events from other data using XPATH.
+     * {@link EventParser} used to extract events from the page.
      */
-    private HtmlCleaner htmlCleaner = null;
+    private EventParser parser = null;
 
     /**
      * Events are retrieved per date. This variable defines which date to be retrieved.
@@ -64,27 +85,234 @@ public class ContentLoader implements Runnable {
      */
     private String site;
 
+    /**
+     * Optional {@link EventCache} consulted before making the connection.
+     */
+    private EventCache cache = null;
+
+    /**
+     * When set cache is bypassed and the site is always contacted.
+     */
+    private boolean forceRefresh = false;
+
+    /**
+     * Set once {@link #cancel()} is called, handler is not notified afterwards.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * {@link Transport} used to fetch the page.
+     */
+    private Transport transport = null;
+
+    /**
+     * Exchange currently in progress, kept to allow {@link #cancel()} to abort the read.
+     */
+    private volatile Transport.Exchange exchange = null;
+
+    /**
+     * Time in milliseconds when {@link #run()} started.
+     */
+    private long startTime;
+
+    /**
+     * Validators returned by the last response, stored with the events in {@link #cache}.
+     */
+    private String responseEtag;
+    private long responseLastModified;
+
+    /**
+     * Bytes received from the network (possibly compressed) and after decompression.
+     */
+    private long bytesReceived;
+    private long bytesDecoded;
+
+    /**
+     * Timing of the last {@link #run()}, null when {@link Metrics} are disabled.
+     */
+    private LoadMetrics metrics;
+
+    /**
+     * Difference against previously stored version found by the last {@link #run()}.
+     */
+    private DayDelta delta;
+
+    /**
+     * Pages fetched in parallel with {@link #site}, empty when only the site is used.
+     */
+    private List<EventSource> sources = new ArrayList<EventSource>();
+
+    /**
+     * Time in milliseconds all sources must complete in.
+     */
+    private long sourceDeadline = 10000;
+
+    /**
+     * Loaders of {@link #sources} in progress, kept to allow {@link #cancel()} to abort them.
+     */
+    private volatile List<ContentLoader> children = null;
+
+    /**
+     * Outcome of each source of the last {@link #run()}, empty without {@link #sources}.
+     */
+    private List<SourceResult> sourceResults = new ArrayList<SourceResult>();
+
+    /**
+     * Charset used when the response does not specify one.
+     */
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    /**
+     * Transport shared by loaders that were not given one, so connections are reused.
+     */
+    private static HttpTransport defaultTransport;
+
+    /**
+     * Maximum number of additional sources fetched at once over all loads.
+     */
+    private static final int SOURCE_THREADS = 4;
+
+    /**
+     * Runs fetches of additional sources, fetches over {@link #SOURCE_THREADS} wait in
+     * the queue until their deadline.
+     */
+    private static final ExecutorService SOURCE_EXECUTOR =
+        Executors.newFixedThreadPool(SOURCE_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "EventSource");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Aborts the site request once {@link #sourceDeadline} passes.
+     */
+    private static final Timer DEADLINE_TIMER = new Timer("EventSource deadline", true);
+
+    /**
+     * Timing and outcome of a single source.
+     */
+    public static class SourceResult {
+        public final String url;
+
+        /**
+         * Time in milliseconds until the source completed, failed or was abandoned.
+         */
+        public final long elapsed;
+
+        public final int eventCount;
+
+        /**
+         * Error message or null if the source succeeded.
+         */
+        public final String error;
+
+        SourceResult(String url, long elapsed, int eventCount, String error) {
+            this.url = url;
+            this.elapsed = elapsed;
+            this.eventCount = eventCount;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return url + ": " + (error != null ? error : eventCount + " events")
+                + " in " + elapsed + " ms";
+        }
+    }
 
     public ContentLoader(String site, ContentHandlerStatus handler) {
         this.handler = handler;
 
         // simple sanity check to make sure tiny problem does not cause the
         // application to crash or return invalid results.
-        if (!site.endsWith("/")) {
+        if (!site.endsWith("/") && !EventSource.isTemplate(site)) {
             site += "/";
         }
         this.site = site;
     }
 
     /**
-     * Keep a single instance of {@link #htmlCleaner} per instance.
-     * @return {@link #htmlCleaner}
+     * Parser defaults to {@link HtmlCleanerEventParser}.
+     * @return {@link #parser}
+     */
+    public EventParser getParser() {
+        if (parser == null) {
+            parser = new HtmlCleanerEventParser();
+        }
+        return parser;
+    }
+
+    public void setParser(EventParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * @param sources pages fetched in parallel with the site and merged into its events
+     * @param deadline time in milliseconds after which slow sources are abandoned
+     */
+    public void setSources(List<EventSource> sources, long deadline) {
+        this.sources = sources;
+        this.sourceDeadline = deadline;
+    }
+
+    /**
+     * @return outcome of the site and each source of the last load, empty if there are
+     *  no additional sources
+     */
+    public List<SourceResult> getSourceResults() {
+        return sourceResults;
+    }
+
+    /**
+     * Transport defaults to shared {@link HttpTransport}.
+     * @return {@link #transport}
+     */
+    public Transport getTransport() {
+        if (transport == null) {
+            transport = getDefaultTransport();
+        }
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return shared {@link HttpTransport} with default timeouts
      */
-    private HtmlCleaner getHtmlCleaner() {
-        if (htmlCleaner == null) {
-            htmlCleaner = new HtmlCleaner();
+    public static synchronized HttpTransport getDefaultTransport() {
+        if (defaultTransport == null) {
+            defaultTransport = new HttpTransport();
         }
-        return htmlCleaner;
+        return defaultTransport;
+    }
+
+    /**
+     * Creates parser by the name used in preferences (<i>parser</i>).
+     *
+     * @param name <i>streaming</i> or <i>htmlcleaner</i>
+     * @return parser instance, {@link HtmlCleanerEventParser} when name is not known
+     */
+    public static EventParser createParser(String name) {
+        return createParser(name, ExtractionPlan.getDefault());
+    }
+
+    /**
+     * Creates parser by the name used in preferences (<i>parser</i>) applying the plan.
+     *
+     * @param name <i>streaming</i> or <i>htmlcleaner</i>
+     * @param plan compiled {@link ExtractionPlan}
+     * @return parser instance, {@link HtmlCleanerEventParser} when name is not known
+     */
+    public static EventParser createParser(String name, ExtractionPlan plan) {
+        if ("streaming".equals(name)) {
+            return new StreamingEventParser(plan);
+        }
+        return new HtmlCleanerEventParser(plan);
     }
 
     /**
@@ -102,73 +330,512 @@ public class ContentLoader implements Runnable {
         this.calendar.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
 
+    /**
+     * Computes the same key as {@link #getDayKey()} without creating a loader.
+     *
+     * @param calendar date
+     * @return day start epoch in seconds
+     */
+    public static long getDayKey(Calendar calendar) {
+        Calendar day = Calendar.getInstance();
+        day.set(
+            calendar.get(Calendar.YEAR),
+            calendar.get(Calendar.MONTH),
+            calendar.get(Calendar.DAY_OF_MONTH), -2, 0, 0);
+
+        day.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return day.getTimeInMillis() / 1000;
+    }
+
+    /**
+     * Inverse of {@link #getDayKey(Calendar)}.
+     *
+     * @param dayKey day start epoch in seconds
+     * @return calendar at local midnight of the day
+     */
+    public static Calendar getDay(long dayKey) {
+        // day key is two hours before midnight UTC
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        utc.setTimeInMillis((dayKey + 2 * 60 * 60) * 1000);
+
+        Calendar day = Calendar.getInstance();
+        day.clear();
+        day.set(utc.get(Calendar.YEAR), utc.get(Calendar.MONTH), utc.get(Calendar.DAY_OF_MONTH));
+        return day;
+    }
+
+    /**
+     * Day key used by {@link EventCache} and as the query string of the request.
+     *
+     * @return day start epoch in seconds
+     */
+    public long getDayKey() {
+        return calendar.getTimeInMillis() / 1000;
+    }
+
+    public void setCache(EventCache cache) {
+        this.cache = cache;
+    }
+
+    public void setForceRefresh(boolean forceRefresh) {
+        this.forceRefresh = forceRefresh;
+    }
+
+    public boolean isForceRefresh() {
+        return forceRefresh;
+    }
+
+    public ContentHandlerStatus getHandler() {
+        return handler;
+    }
+
+    public void setHandler(ContentHandlerStatus handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Stops the load. If exchange is in progress it is aborted so the blocked read fails
+     * immediately. Handler is not notified about cancelled loads.
+     */
+    public void cancel() {
+        cancelled = true;
+        Transport.Exchange current = exchange;
+        if (current != null) {
+            current.abort();
+        }
+        List<ContentLoader> loaders = children;
+        if (loaders != null) {
+            for (ContentLoader loader : loaders) {
+                loader.cancel();
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
     @Override
     public void run() {
+        if (cancelled) {
+            return;
+        }
+        startTime = System.currentTimeMillis();
+        metrics = LoadMetrics.start(getDayKey());
+        boolean delivered = false;
         try {
-            Map<String, List<Event>> events = internalExecute();
-            handler.onComplete(events);
+            Map<String, List<Event>> events = null;
+            EventCache.Entry entry = null;
+            delta = null;
+            if (cache != null) {
+                entry = cache.getEntry(getDayKey());
+                if (entry != null && !forceRefresh && cache.get(getDayKey()) != null) {
+                    events = entry.getEvents();
+                    delta = DayDelta.unchanged(entry.snapshot);
+                    setSource(LoadMetrics.SOURCE_CACHE);
+                }
+                LoadMetrics.mark(LoadMetrics.STORE);
+            }
+            if (events == null) {
+                events = sources.isEmpty() ? internalExecute(entry) : executeSources();
+                if (events == null) {
+                    // not modified since cached
+                    setSource(LoadMetrics.SOURCE_NOT_MODIFIED);
+                    cache.touch(getDayKey());
+                    events = entry.getEvents();
+                    delta = DayDelta.unchanged(entry.snapshot);
+                } else if (cache != null) {
+                    // validators of the site do not cover merged sources
+                    EventCache.Entry stored = sources.isEmpty()
+                        ? cache.put(getDayKey(), events, getUrl(),
+                            responseEtag, responseLastModified)
+                        : cache.put(getDayKey(), events);
+                    delta = DayDelta.compute(entry != null ? entry.snapshot : null,
+                        stored.snapshot);
+                } else if (handler instanceof DeltaContentHandler) {
+                    delta = DayDelta.compute(null, DaySnapshot.fromMap(events));
+                }
+                LoadMetrics.mark(LoadMetrics.STORE);
+            }
+            if (metrics != null) {
+                int rows = 0;
+                for (List<Event> list : events.values()) {
+                    rows += list.size();
+                }
+                metrics.setRows(events.size(), rows);
+            }
+            if (!cancelled) {
+                delivered = true;
+                if (handler instanceof ReportingContentHandler) {
+                    ((ReportingContentHandler) handler).onReport(this);
+                }
+                if (handler instanceof DeltaContentHandler) {
+                    ((DeltaContentHandler) handler).onDelta(delta);
+                }
+                handler.onComplete(events);
+                LoadMetrics.mark(LoadMetrics.DELIVER);
+            }
         } catch (IOException ex) {
-            handler.onError(R.string.error_nodes_general, ex.getMessage());
-        } catch (XPatherException ex) {
-            handler.onError(
-                R.string.error_nodes_general, ex.getMessage());
+            setError(ex.toString());
+            if (!cancelled) {
+                handler.onError(ContentHandlerStatus.ERROR_GENERAL, ex.getMessage());
+            }
         } catch (IllegalStateException ex) {
-            handler.onError(R.string.error_nodes_empty, null);
+            setError(ex.toString());
+            if (!cancelled) {
+                handler.onError(ContentHandlerStatus.ERROR_EMPTY, null);
+            }
+        } catch (RuntimeException ex) {
+            // unexpected markup or a bug in parser, the handler still has to hear back
+            setError(ex.toString());
+            if (delivered) {
+                throw ex;
+            }
+            if (!cancelled) {
+                handler.onError(ContentHandlerStatus.ERROR_GENERAL, ex.toString());
+            }
+        } finally {
+            exchange = null;
+            if (metrics != null) {
+                metrics.setBytes(bytesReceived, bytesDecoded);
+                if (cancelled) {
+                    metrics.setError("Cancelled");
+                }
+                metrics.finish();
+            }
+        }
+    }
+
+    private void setSource(String source) {
+        if (metrics != null) {
+            metrics.setSource(source);
+        }
+    }
+
+    private void setError(String error) {
+        if (metrics != null) {
+            metrics.setError(error);
+        }
+    }
+
+    /**
+     * @return timing of the last load or null if {@link Metrics} were disabled
+     */
+    public LoadMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return difference found by the last load, null if it failed or there was no
+     *  cache and the handler is not a {@link DeltaContentHandler}
+     */
+    public DayDelta getDelta() {
+        return delta;
+    }
+
+    /**
+     * Creates listener forwarding categories to handler if it is {@link ProgressiveContentHandler}.
+     *
+     * @return listener or null when handler is not interested in partial results
+     */
+    private EventParser.CategoryListener createCategoryListener() {
+        if (!(handler instanceof ProgressiveContentHandler)) {
+            return null;
+        }
+        final ProgressiveContentHandler progressive = (ProgressiveContentHandler) handler;
+        return new EventParser.CategoryListener() {
+            @Override
+            public void onCategory(String category, List<Event> events) {
+                if (!cancelled) {
+                    progressive.onCategory(category, new ArrayList<Event>(events),
+                        System.currentTimeMillis() - startTime);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return URL used to retrieve events for the selected date
+     */
+    public String getUrl() {
+        if (EventSource.isTemplate(site)) {
+            return EventSource.expand(site, getDayKey(), getDay(getDayKey()));
         }
+        return site + "?" + getDayKey();
     }
 
-    @SuppressWarnings("unchecked")
-    protected Map<String, List<Event>> internalExecute() throws IOException, XPatherException {
-        Map<String, List<Event>> events = new LinkedHashMap<String, List<Event>>();
+    /**
+     * Fetches {@link #sources} in parallel while the site is loaded on this thread and
+     * merges the results in order, the site first. All events of the site are kept,
+     * events of other sources already merged are skipped. Requests are not conditional.
+     *
+     * @return merged events
+     * @throws IOException error of the site if all sources fail
+     */
+    private Map<String, List<Event>> executeSources() throws IOException {
+        final long start = System.currentTimeMillis();
+        final long deadline = start + sourceDeadline;
 
-        URL url = new URL(site + "?" + (calendar.getTimeInMillis() / 1000));
-        URLConnection connection = url.openConnection();
+        // completion time of each source, visible once its future is done
+        final long[] finished = new long[sources.size()];
+        List<ContentLoader> loaders = new ArrayList<ContentLoader>(sources.size());
+        List<Future<Map<String, List<Event>>>> futures =
+            new ArrayList<Future<Map<String, List<Event>>>>(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            final int index = i;
+            final ContentLoader loader = new ContentLoader(sources.get(i).getUrl(), null);
+            loader.setCalendar(getDay(getDayKey()));
+            loader.setParser(sources.get(i).createParser());
+            loader.setTransport(getTransport());
+            loaders.add(loader);
+            futures.add(SOURCE_EXECUTOR.submit(new Callable<Map<String, List<Event>>>() {
+                @Override
+                public Map<String, List<Event>> call() throws IOException {
+                    try {
+                        return loader.internalExecute(null);
+                    } finally {
+                        finished[index] = System.currentTimeMillis();
+                    }
+                }
+            }));
+        }
+        children = loaders;
+
+        TimerTask watchdog = new TimerTask() {
+            @Override
+            public void run() {
+                Transport.Exchange current = exchange;
+                if (current != null) {
+                    current.abort();
+                }
+            }
+        };
+        DEADLINE_TIMER.schedule(watchdog, sourceDeadline);
+
+        List<SourceResult> results = new ArrayList<SourceResult>(loaders.size() + 1);
+        Map<String, List<Event>> merged = new LinkedHashMap<String, List<Event>>();
+        Set<String> seen = new HashSet<String>();
+        Exception failure = null;
+        try {
+            try {
+                Map<String, List<Event>> events = internalExecute(null);
+                int count = EventSource.add(merged, events, seen);
+                results.add(new SourceResult(getUrl(), System.currentTimeMillis() - start,
+                    count, null));
+            } catch (IOException ex) {
+                failure = ex;
+            } catch (IllegalStateException ex) {
+                failure = ex;
+            } finally {
+                watchdog.cancel();
+            }
+            if (failure != null) {
+                long elapsed = System.currentTimeMillis() - start;
+                results.add(new SourceResult(getUrl(), elapsed, 0,
+                    elapsed >= sourceDeadline ? "Deadline exceeded" : String.valueOf(failure)));
+            }
 
-        TagNode root = getHtmlCleaner().clean(
-            new InputStreamReader(connection.getInputStream()));
+            for (int i = 0; i < futures.size(); i++) {
+                ContentLoader loader = loaders.get(i);
+                String error = null;
+                int count = 0;
+                try {
+                    long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                    count = EventSource.merge(merged,
+                        futures.get(i).get(remaining, TimeUnit.MILLISECONDS), seen);
+                } catch (TimeoutException ex) {
+                    error = "Deadline exceeded";
+                } catch (ExecutionException ex) {
+                    error = String.valueOf(ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    throw new IOException("Cancelled");
+                }
+                bytesReceived += loader.bytesReceived;
+                bytesDecoded += loader.bytesDecoded;
+                long end = finished[i] > 0 ? finished[i] : System.currentTimeMillis();
+                results.add(new SourceResult(loader.getUrl(), end - start, count, error));
+            }
+        } finally {
+            // sources still queued or running past the deadline or after the site failed
+            // unexpectedly are stopped, queued ones never start
+            for (int i = 0; i < futures.size(); i++) {
+                if (!futures.get(i).isDone()) {
+                    futures.get(i).cancel(false);
+                    loaders.get(i).cancel();
+                }
+            }
+            children = null;
+            sourceResults = results;
+        }
 
-        Object[] nodes = root.evaluateXPath("//div[@id='events']//tr");
-        if (nodes == null) {
-            throw new IllegalStateException();
+        if (merged.isEmpty() && failure != null) {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            throw (IllegalStateException) failure;
         }
+        return merged;
+    }
+
+    /**
+     * Loads and extracts events. When previous entry is provided and has validators the
+     * request is made conditional, in case the site responds with <i>304 Not Modified</i>
+     * previously extracted events are returned as is without parsing.
+     *
+     * @param previous previously cached entry for the same day or null
+     * @return events or null if not modified since previous entry was stored
+     */
+    protected Map<String, List<Event>> internalExecute(EventCache.Entry previous)
+            throws IOException {
+        String url = getUrl();
+        Transport.Exchange exchange = getTransport().open(url);
+        this.exchange = exchange;
+        try {
+            if (cancelled) {
+                throw new IOException("Cancelled");
+            }
+            if (previous != null && previous.canRevalidate(url)) {
+                exchange.setValidators(previous.etag, previous.lastModified);
+            }
+            int status = exchange.execute();
+            LoadMetrics.mark(LoadMetrics.FIRST_BYTE);
+            if (status == Transport.Exchange.NOT_MODIFIED && previous != null) {
+                return null;
+            }
+            if (status != Transport.Exchange.OK) {
+                throw new IOException("HTTP " + status);
+            }
+            responseEtag = exchange.getEtag();
+            responseLastModified = exchange.getLastModified();
 
-        String category = null;
-        for (Object object : nodes) {
-            List<Object> children = ((TagNode) object).getChildren();
-            if (children.size() != 4 || (children.size() > 0
-                    && children.get(0).toString().equals("th"))) {
-                continue;
+            // counted right at the connection so buffering and decoding do not skew it
+            CountingInputStream received = new CountingInputStream(exchange.getBody());
+            InputStream body = received;
+            if (metrics != null) {
+                body = metrics.time(body);
             }
-            String tempCategory = extractNodeTextIfPossible(children.get(0));
-            if (!tempCategory.equals("&nbsp;")) {
-                category = tempCategory;
-                if (!events.containsKey(category)) {
-                    events.put(category, new ArrayList<Event>());
+            CountingInputStream decoded = new CountingInputStream(
+                decode(new BufferedInputStream(body, 8192), exchange.getContentEncoding()));
+            try {
+                Map<String, List<Event>> events;
+                if (isSnapshot(exchange.getContentType())) {
+                    // already extracted by a proxy, see SnapshotFormat
+                    events = readSnapshot(decoded).getEvents();
+                } else {
+                    InputStreamReader reader = new InputStreamReader(
+                        decoded, getCharset(exchange.getContentType()));
+                    events = getParser().parse(reader, createCategoryListener());
                 }
+                LoadMetrics.mark(LoadMetrics.EXTRACT);
+                return events;
+            } finally {
+                bytesReceived = received.getCount();
+                bytesDecoded = decoded.getCount();
             }
-            events.get(category).add(new Event(
-                extractNodeTextIfPossible(children.get(1)),
-                extractNodeTextIfPossible(children.get(3)),
-                extractNodeTextIfPossible(children.get(2))));
+        } finally {
+            // closing drains the body so the connection can be reused
+            exchange.close();
         }
-        return events;
     }
 
     /**
-     * Given the HTML node filtered by XPath attempt to extract
-     * the node text if possible.
+     * @param contentType value of <i>Content-Type</i> header or null
+     * @return true if the response is a day encoded by {@link SnapshotFormat}
+     */
+    static boolean isSnapshot(String contentType) {
+        return contentType != null
+            && contentType.trim().toLowerCase().startsWith(SnapshotFormat.CONTENT_TYPE);
+    }
+
+    /**
+     * Reads whole response and decodes it as {@link SnapshotFormat}.
+     */
+    private EventCache.Entry readSnapshot(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            if (cancelled) {
+                throw new IOException("Cancelled");
+            }
+            bytes.write(buffer, 0, read);
+        }
+        return SnapshotFormat.decode(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    /**
+     * Wraps the stream to decompress it on the fly according to <i>Content-Encoding</i>.
      *
-     * @param node HTML node returned by filtering using XPath
-     * @return node text otherwise {@link IllegalStateException} is thrown
+     * @param in response stream
+     * @param encoding value of <i>Content-Encoding</i> header or null
+     * @return stream of decoded content
      */
-    protected String extractNodeTextIfPossible(Object node) {
-        if (node instanceof TagNode) {
-            return ((TagNode) node).getText().toString();
+    static InputStream decode(InputStream in, String encoding) throws IOException {
+        if (encoding == null) {
+            return in;
+        }
+        encoding = encoding.trim().toLowerCase();
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            return new GZIPInputStream(in, 8192);
+        }
+        if (encoding.equals("deflate")) {
+            // servers send deflate either zlib wrapped (as specified) or raw, peeked
+            // bytes are pushed back so the stream below reads each byte once
+            PushbackInputStream peek = new PushbackInputStream(in, 2);
+            byte[] header = new byte[2];
+            int length = 0;
+            int read;
+            while (length < 2 && (read = peek.read(header, length, 2 - length)) > 0) {
+                length += read;
+            }
+            peek.unread(header, 0, length);
+            int first = header[0] & 0xff;
+            int second = header[1] & 0xff;
+            boolean zlib = length == 2 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+            return new InflaterInputStream(peek, new Inflater(!zlib), 8192);
         }
-        if (node instanceof ContentNode) {
-            return ((ContentNode) node).getContent().toString();
-        } else {
-            throw new IllegalStateException("Unexpected node type");
+        return in;
+    }
+
+    /**
+     * Extracts charset from <i>Content-Type</i> header.
+     *
+     * @param contentType header value or null
+     * @return supported charset name, {@link #DEFAULT_CHARSET} if missing or not supported
+     */
+    static String getCharset(String contentType) {
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                parameter = parameter.trim();
+                if (parameter.toLowerCase().startsWith("charset=")) {
+                    String charset = parameter.substring(8).trim().replace("\"", "");
+                    try {
+                        if (Charset.isSupported(charset)) {
+                            return charset;
+                        }
+                    } catch (IllegalArgumentException ex) {
+                        // illegal charset name, use default
+                    }
+                }
+            }
         }
+        return DEFAULT_CHARSET;
+    }
+
+    /**
+     * @return bytes received over the network by the last load, compressed size if
+     *         the response was compressed
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return bytes of the page after decompression
+     */
+    public long getBytesDecoded() {
+        return bytesDecoded;
     }
 }
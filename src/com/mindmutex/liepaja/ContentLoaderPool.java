@@ -0,0 +1,383 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link ContentLoader} instances on a bounded number of threads. Loads requested
+ * by the user are executed before background prefetch of neighbouring days.
+ * <p>
+ * Each loader delivers its result through its own {@link ContentHandlerStatus} as soon
+ * as the day is loaded, so days of a range are delivered in completion order.
+ * <p>
+ * Loads of the same URL are coalesced: while a day is queued or being loaded further
+ * requests for it only register their handler and get the loader that ran through
+ * {@link ReportingContentHandler}. Every request can be cancelled, the load itself is
+ * cancelled once no handler is interested in the result.
+ */
+public class ContentLoaderPool {
+
+    /**
+     * Priority of the day that user is looking at.
+     */
+    public static final int PRIORITY_CURRENT = 0;
+
+    /**
+     * Priority of days loaded in advance.
+     */
+    public static final int PRIORITY_PREFETCH = 1;
+
+    /**
+     * Handler for prefetched days, result is only stored in {@link EventCache}.
+     */
+    public static final ContentHandlerStatus IGNORE = new ContentHandlerStatus() {
+        @Override
+        public void onComplete(Map<String, List<Event>> events) {
+        }
+
+        @Override
+        public void onError(int errorCode, String message) {
+        }
+    };
+
+    /**
+     * Used to keep FIFO order between tasks of the same priority.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Loads that are queued or running by URL. Guarded by this.
+     */
+    private final Map<String, InFlight> inFlight = new HashMap<String, InFlight>();
+
+    /**
+     * Number of days before and after the current day to prefetch.
+     */
+    private int prefetchWindow;
+
+    public ContentLoaderPool(int threads, int prefetchWindow) {
+        this.prefetchWindow = prefetchWindow;
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ContentLoader-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /**
+     * Changes limits, takes effect for tasks started afterwards.
+     *
+     * @param threads maximum number of concurrent loads
+     * @param prefetchWindow number of days to prefetch on each side of current day
+     */
+    public synchronized void configure(int threads, int prefetchWindow) {
+        this.prefetchWindow = prefetchWindow;
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    public synchronized int getPrefetchWindow() {
+        return prefetchWindow;
+    }
+
+    /**
+     * Schedules a load. If the same URL is already queued or running, the handler of
+     * the loader is attached to it instead. Forced refresh is never served by a load
+     * that is allowed to use cache.
+     *
+     * @param loader loader configured with the day and handler
+     * @param priority {@link #PRIORITY_CURRENT} or {@link #PRIORITY_PREFETCH}
+     * @return request that can be used to cancel
+     */
+    public synchronized Request execute(ContentLoader loader, int priority) {
+        String key = loader.getUrl();
+
+        InFlight flight = inFlight.get(key);
+        if (flight != null && (flight.loader.isForceRefresh() || !loader.isForceRefresh())) {
+            if (priority < flight.task.priority && executor.remove(flight.task)) {
+                flight.task = new Task(flight.loader, flight, priority,
+                    sequence.getAndIncrement());
+                executor.execute(flight.task);
+            }
+            return flight.add(loader.getHandler());
+        }
+
+        flight = new InFlight(key, loader);
+        Request request = flight.add(loader.getHandler());
+        loader.setHandler(flight);
+        inFlight.put(key, flight);
+
+        flight.task = new Task(loader, flight, priority, sequence.getAndIncrement());
+        executor.execute(flight.task);
+        return request;
+    }
+
+    /**
+     * Runs other work that must stay off the UI thread, such as reading stored days,
+     * in the same order as loads of the given priority.
+     *
+     * @param work work to run
+     * @param priority {@link #PRIORITY_CURRENT} or {@link #PRIORITY_PREFETCH}
+     */
+    public void submit(Runnable work, int priority) {
+        executor.execute(new Task(work, null, priority, sequence.getAndIncrement()));
+    }
+
+    /**
+     * Schedules loads of consecutive days. First loader is treated as the current day
+     * the others are loaded with prefetch priority.
+     *
+     * @param loaders loaders, one per day
+     * @return requests in the same order as loaders
+     */
+    public List<Request> loadRange(List<ContentLoader> loaders) {
+        List<Request> requests = new ArrayList<Request>(loaders.size());
+        for (int i = 0; i < loaders.size(); i++) {
+            requests.add(execute(loaders.get(i), i == 0 ? PRIORITY_CURRENT : PRIORITY_PREFETCH));
+        }
+        return requests;
+    }
+
+    /**
+     * Schedules loads of days in advance, results are expected to be stored in {@link EventCache}.
+     *
+     * @param loaders loaders, one per day
+     */
+    public void prefetch(List<ContentLoader> loaders) {
+        for (ContentLoader loader : loaders) {
+            execute(loader, PRIORITY_PREFETCH);
+        }
+    }
+
+    /**
+     * Removes scheduled tasks that were not yet started.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Handle of a single request, see {@link ContentLoaderPool#execute(ContentLoader, int)}.
+     */
+    public class Request {
+        private final InFlight flight;
+
+        private final ContentHandlerStatus handler;
+
+        Request(InFlight flight, ContentHandlerStatus handler) {
+            this.flight = flight;
+            this.handler = handler;
+        }
+
+        /**
+         * Handler of this request will not be notified. If no other request waits for
+         * the same day the load is removed from the queue or aborted.
+         */
+        public void cancel() {
+            synchronized (ContentLoaderPool.this) {
+                flight.handlers.remove(handler);
+                if (!flight.handlers.isEmpty()) {
+                    return;
+                }
+                if (inFlight.get(flight.key) == flight) {
+                    inFlight.remove(flight.key);
+                }
+                executor.remove(flight.task);
+            }
+            flight.loader.cancel();
+        }
+    }
+
+    /**
+     * Load shared by one or more requests, dispatches result to every handler.
+     */
+    private class InFlight
+            implements ProgressiveContentHandler, DeltaContentHandler, ReportingContentHandler {
+        final String key;
+
+        final ContentLoader loader;
+
+        final List<ContentHandlerStatus> handlers = new ArrayList<ContentHandlerStatus>(2);
+
+        Task task;
+
+        /**
+         * Set once handlers were notified, guarded by pool.
+         */
+        boolean completed;
+
+        InFlight(String key, ContentLoader loader) {
+            this.key = key;
+            this.loader = loader;
+        }
+
+        Request add(ContentHandlerStatus handler) {
+            handlers.add(handler);
+            return new Request(this, handler);
+        }
+
+        /**
+         * Removes the load from {@link #inFlight} and returns handlers to notify.
+         */
+        private List<ContentHandlerStatus> complete() {
+            synchronized (ContentLoaderPool.this) {
+                if (inFlight.get(key) == this) {
+                    inFlight.remove(key);
+                }
+                if (completed) {
+                    return new ArrayList<ContentHandlerStatus>(0);
+                }
+                completed = true;
+                return new ArrayList<ContentHandlerStatus>(handlers);
+            }
+        }
+
+        /**
+         * Called after the loader returned or threw. If it did not notify the handlers,
+         * they get an error so later requests of the day are not attached to a load
+         * that never finishes.
+         */
+        void finish() {
+            for (ContentHandlerStatus handler : complete()) {
+                handler.onError(ContentHandlerStatus.ERROR_GENERAL, null);
+            }
+        }
+
+        @Override
+        public void onCategory(String category, List<Event> events, long elapsed) {
+            List<ContentHandlerStatus> copy;
+            synchronized (ContentLoaderPool.this) {
+                copy = new ArrayList<ContentHandlerStatus>(handlers);
+            }
+            for (ContentHandlerStatus handler : copy) {
+                if (handler instanceof ProgressiveContentHandler) {
+                    ((ProgressiveContentHandler) handler).onCategory(category, events, elapsed);
+                }
+            }
+        }
+
+        @Override
+        public void onReport(ContentLoader loader) {
+            List<ContentHandlerStatus> copy;
+            synchronized (ContentLoaderPool.this) {
+                copy = new ArrayList<ContentHandlerStatus>(handlers);
+            }
+            for (ContentHandlerStatus handler : copy) {
+                if (handler instanceof ReportingContentHandler) {
+                    ((ReportingContentHandler) handler).onReport(loader);
+                }
+            }
+        }
+
+        @Override
+        public void onDelta(DayDelta delta) {
+            List<ContentHandlerStatus> copy;
+            synchronized (ContentLoaderPool.this) {
+                copy = new ArrayList<ContentHandlerStatus>(handlers);
+            }
+            for (ContentHandlerStatus handler : copy) {
+                if (handler instanceof DeltaContentHandler) {
+                    ((DeltaContentHandler) handler).onDelta(delta);
+                }
+            }
+        }
+
+        @Override
+        public void onComplete(Map<String, List<Event>> events) {
+            for (ContentHandlerStatus handler : complete()) {
+                handler.onComplete(events);
+            }
+        }
+
+        @Override
+        public void onError(int errorCode, String message) {
+            for (ContentHandlerStatus handler : complete()) {
+                handler.onError(errorCode, message);
+            }
+        }
+    }
+
+    /**
+     * Runnable that can be ordered in {@link PriorityBlockingQueue}.
+     */
+    private static class Task implements Runnable, Comparable<Task> {
+        private final Runnable work;
+
+        /**
+         * Load run by the task, null for {@link ContentLoaderPool#submit(Runnable, int)}.
+         */
+        private final InFlight flight;
+
+        private final int priority;
+
+        private final long sequence;
+
+        Task(Runnable work, InFlight flight, int priority, long sequence) {
+            this.work = work;
+            this.flight = flight;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                work.run();
+            } finally {
+                if (flight != null) {
+                    flight.finish();
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Difference between two versions of the same day.
+ * <p>
+ * Categories are compared by {@link DaySnapshot#categoryHash(int)} first, rows are only
+ * compared inside categories whose hash differs. Rows match by location and time
+ * ({@link DaySnapshot#identityHash(int)}), a matching row with different content is
+ * reported as changed. A row moved to another category is removed and added.
+ */
+public final class DayDelta {
+
+    private static final int[] NONE = new int[0];
+
+    private final DaySnapshot previous;
+
+    private final DaySnapshot current;
+
+    private final int[] added;
+
+    private final int[] removed;
+
+    private final int[] changed;
+
+    private final List<String> changedCategories;
+
+    /**
+     * Added and changed positions in {@link #current}.
+     */
+    private final BitSet fresh = new BitSet();
+
+    private DayDelta(DaySnapshot previous, DaySnapshot current, int[] added, int[] removed,
+            int[] changed, List<String> changedCategories) {
+        this.previous = previous;
+        this.current = current;
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+        this.changedCategories = changedCategories;
+        for (int position : added) {
+            fresh.set(position);
+        }
+        for (int position : changed) {
+            fresh.set(position);
+        }
+    }
+
+    /**
+     * Delta of a day confirmed as not modified.
+     *
+     * @param current stored events
+     * @return delta without changes
+     */
+    public static DayDelta unchanged(DaySnapshot current) {
+        return new DayDelta(current, current, NONE, NONE, NONE, new ArrayList<String>());
+    }
+
+    /**
+     * @param previous previously stored version or null if the day was not stored
+     * @param current new version
+     * @return difference, all events are added when there is no previous version
+     */
+    public static DayDelta compute(DaySnapshot previous, DaySnapshot current) {
+        Map<String, Integer> previousGroups = new HashMap<String, Integer>();
+        if (previous != null) {
+            for (int group = 0; group < previous.getCategoryCount(); group++) {
+                previousGroups.put(previous.getCategory(group), group);
+            }
+        }
+
+        List<Integer> added = new ArrayList<Integer>();
+        List<Integer> removed = new ArrayList<Integer>();
+        List<Integer> changed = new ArrayList<Integer>();
+        List<String> changedCategories = new ArrayList<String>();
+
+        for (int group = 0; group < current.getCategoryCount(); group++) {
+            String category = current.getCategory(group);
+            Integer previousGroup = previousGroups.remove(category);
+            if (previousGroup == null) {
+                changedCategories.add(category);
+                for (int position = current.getStart(group); position < current.getEnd(group); position++) {
+                    added.add(position);
+                }
+            } else if (previous.categoryHash(previousGroup) != current.categoryHash(group)) {
+                changedCategories.add(category);
+                compareRows(previous, previousGroup, current, group, added, removed, changed);
+            }
+        }
+        // categories no longer present
+        for (Map.Entry<String, Integer> group : previousGroups.entrySet()) {
+            changedCategories.add(group.getKey());
+            for (int position = previous.getStart(group.getValue());
+                    position < previous.getEnd(group.getValue()); position++) {
+                removed.add(position);
+            }
+        }
+        return new DayDelta(previous, current, toArray(added), toArray(removed),
+            toArray(changed), changedCategories);
+    }
+
+    /**
+     * Matches rows of the same category, identical rows first then by identity.
+     */
+    private static void compareRows(DaySnapshot previous, int previousGroup,
+            DaySnapshot current, int group,
+            List<Integer> added, List<Integer> removed, List<Integer> changed) {
+        Map<Long, LinkedList<Integer>> byContent = new HashMap<Long, LinkedList<Integer>>();
+        for (int position = previous.getStart(previousGroup);
+                position < previous.getEnd(previousGroup); position++) {
+            long hash = previous.contentHash(position);
+            LinkedList<Integer> positions = byContent.get(hash);
+            if (positions == null) {
+                positions = new LinkedList<Integer>();
+                byContent.put(hash, positions);
+            }
+            positions.add(position);
+        }
+
+        List<Integer> unmatched = new ArrayList<Integer>();
+        for (int position = current.getStart(group); position < current.getEnd(group); position++) {
+            LinkedList<Integer> positions = byContent.get(current.contentHash(position));
+            if (positions == null || positions.isEmpty()) {
+                unmatched.add(position);
+            } else {
+                positions.removeFirst();
+            }
+        }
+
+        Map<Long, LinkedList<Integer>> byIdentity = new HashMap<Long, LinkedList<Integer>>();
+        for (LinkedList<Integer> positions : byContent.values()) {
+            for (int position : positions) {
+                long hash = previous.identityHash(position);
+                LinkedList<Integer> same = byIdentity.get(hash);
+                if (same == null) {
+                    same = new LinkedList<Integer>();
+                    byIdentity.put(hash, same);
+                }
+                same.add(position);
+            }
+        }
+        for (int position : unmatched) {
+            LinkedList<Integer> positions = byIdentity.get(current.identityHash(position));
+            if (positions == null || positions.isEmpty()) {
+                added.add(position);
+            } else {
+                positions.removeFirst();
+                changed.add(position);
+            }
+        }
+        for (LinkedList<Integer> positions : byIdentity.values()) {
+            removed.addAll(positions);
+        }
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return previous version, null if the day was not stored before
+     */
+    public DaySnapshot getPrevious() {
+        return previous;
+    }
+
+    public DaySnapshot getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return positions of new events in {@link #getCurrent()}
+     */
+    public int[] getAdded() {
+        return added;
+    }
+
+    /**
+     * @return positions of events no longer present in {@link #getPrevious()}
+     */
+    public int[] getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return positions of events with changed description in {@link #getCurrent()}
+     */
+    public int[] getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return names of categories that were added, removed or have different events
+     */
+    public List<String> getChangedCategories() {
+        return changedCategories;
+    }
+
+    public boolean hasChanges() {
+        return added.length > 0 || removed.length > 0 || changed.length > 0
+            || changedCategories.size() > 0;
+    }
+
+    /**
+     * @param position event position in {@link #getCurrent()}
+     * @return true if the event was added or changed
+     */
+    public boolean isFresh(int position) {
+        return fresh.get(position);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("+%d -%d ~%d in %d categories",
+            added.length, removed.length, changed.length, changedCategories.size());
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact read only representation of events of a single day.
+ * <p>
+ * Instead of {@link Event} objects the snapshot keeps parallel arrays of indexes into
+ * its own table of distinct strings (see {@link StringDictionary}) and the start time in
+ * minutes of day. Nothing but category names is shared with other snapshots, so an
+ * evicted day frees all of its strings. Events are stored
+ * category by category, events of category <i>g</i> occupy positions from
+ * {@link #getStart(int)} to {@link #getEnd(int)} exclusive.
+ */
+public final class DaySnapshot {
+
+    /**
+     * Distinct strings of the day.
+     */
+    private final String[] strings;
+
+    private final int[] categories;
+
+    /**
+     * Start position of each category plus total number of events as the last element.
+     */
+    private final int[] starts;
+
+    private final int[] locations;
+
+    private final int[] descriptions;
+
+    private final int[] timestamps;
+
+    private final short[] minutes;
+
+    private DaySnapshot(String[] strings, int[] categories, int[] starts,
+            int[] locations, int[] descriptions, int[] timestamps, short[] minutes) {
+        this.strings = strings;
+        this.categories = categories;
+        this.starts = starts;
+        this.locations = locations;
+        this.descriptions = descriptions;
+        this.timestamps = timestamps;
+        this.minutes = minutes;
+    }
+
+    /**
+     * Creates snapshot from already built columns, used by {@link SnapshotFormat}.
+     *
+     * @param strings string table of the day, category entries should be shared
+     *  through {@link StringDictionary#shareCategory(String)}
+     */
+    static DaySnapshot create(String[] strings, int[] categories, int[] starts,
+            int[] locations, int[] descriptions, int[] timestamps, short[] minutes) {
+        return new DaySnapshot(strings, categories, starts,
+            locations, descriptions, timestamps, minutes);
+    }
+
+    /**
+     * @param events categories and events
+     * @return snapshot with its own string table
+     */
+    public static DaySnapshot fromMap(Map<String, List<Event>> events) {
+        int eventCount = 0;
+        for (List<Event> list : events.values()) {
+            eventCount += list.size();
+        }
+
+        StringDictionary dictionary = new StringDictionary(eventCount * 2 + events.size());
+        int[] categories = new int[events.size()];
+        int[] starts = new int[events.size() + 1];
+        int[] locations = new int[eventCount];
+        int[] descriptions = new int[eventCount];
+        int[] timestamps = new int[eventCount];
+        short[] minutes = new short[eventCount];
+        int group = 0;
+        int position = 0;
+        for (Map.Entry<String, List<Event>> entry : events.entrySet()) {
+            categories[group] = dictionary.intern(StringDictionary.shareCategory(entry.getKey()));
+            starts[group++] = position;
+            for (Event event : entry.getValue()) {
+                locations[position] = dictionary.intern(nullToEmpty(event.location));
+                descriptions[position] = dictionary.intern(nullToEmpty(event.description));
+                timestamps[position] = dictionary.intern(nullToEmpty(event.timestamp));
+                minutes[position] = (short) event.minutes;
+                position++;
+            }
+        }
+        starts[group] = position;
+        return new DaySnapshot(dictionary.toArray(), categories, starts,
+            locations, descriptions, timestamps, minutes);
+    }
+
+    /**
+     * Materializes events, used by code that still expects the map.
+     *
+     * @return new map with new {@link Event} instances
+     */
+    public Map<String, List<Event>> toMap() {
+        Map<String, List<Event>> events = new LinkedHashMap<String, List<Event>>();
+        for (int group = 0; group < categories.length; group++) {
+            List<Event> list = new ArrayList<Event>(getEnd(group) - getStart(group));
+            for (int i = getStart(group); i < getEnd(group); i++) {
+                list.add(getEvent(i));
+            }
+            events.put(getCategory(group), list);
+        }
+        return events;
+    }
+
+    public int getCategoryCount() {
+        return categories.length;
+    }
+
+    public String getCategory(int group) {
+        return strings[categories[group]];
+    }
+
+    public int getStart(int group) {
+        return starts[group];
+    }
+
+    public int getEnd(int group) {
+        return starts[group + 1];
+    }
+
+    /**
+     * @param position event position
+     * @return category group the event belongs to
+     */
+    public int getGroup(int position) {
+        int low = 0;
+        int high = categories.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    public int getEventCount() {
+        return locations.length;
+    }
+
+    public String getLocation(int position) {
+        return strings[locations[position]];
+    }
+
+    public String getDescription(int position) {
+        return strings[descriptions[position]];
+    }
+
+    public String getTimestamp(int position) {
+        return strings[timestamps[position]];
+    }
+
+    /**
+     * @param position event position
+     * @return minutes since midnight or -1 if time is not known
+     */
+    public int getMinutes(int position) {
+        return minutes[position];
+    }
+
+    /**
+     * @param position event position
+     * @return new {@link Event} instance
+     */
+    public Event getEvent(int position) {
+        return new Event(getLocation(position), getDescription(position),
+            getTimestamp(position), minutes[position]);
+    }
+
+    /**
+     * Same value as {@link Event#contentHash()} of {@link #getEvent(int)} without allocation.
+     *
+     * @param position event position
+     * @return 64 bit hash
+     */
+    public long contentHash(int position) {
+        long hash = Event.hash(Event.HASH_SEED, getLocation(position));
+        hash = Event.hash(hash, getDescription(position));
+        return Event.hash(hash, getTimestamp(position));
+    }
+
+    /**
+     * Hash of the category name and content of its events in order, equal hashes mean
+     * the category did not change.
+     *
+     * @param group category group
+     * @return 64 bit hash
+     */
+    public long categoryHash(int group) {
+        long hash = Event.hash(Event.HASH_SEED, getCategory(group));
+        for (int position = getStart(group); position < getEnd(group); position++) {
+            hash = (hash ^ contentHash(position)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Hash of the fields identifying an event regardless of its description, used to
+     * tell a changed event from a new one.
+     *
+     * @param position event position
+     * @return 64 bit hash
+     */
+    public long identityHash(int position) {
+        long hash = Event.hash(Event.HASH_SEED, getLocation(position));
+        return Event.hash(hash, getTimestamp(position));
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
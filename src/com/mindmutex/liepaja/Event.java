@@ -28,6 +28,13 @@ package com.mindmutex.liepaja;
  * Attempt to increase performance by not specifying getters and setters.
  */
 public class Event {
+    /**
+     * Initial value of 64 bit FNV-1a hash, see {@link #hash(long, String)}.
+     */
+    public static final long HASH_SEED = 0xcbf29ce484222325L;
+
+    private static final long HASH_PRIME = 0x100000001b3L;
+
     /**
      * Name of the event such as name of the movie, name of
      * the exhibition or similar.
@@ -45,10 +52,96 @@ public class Event {
      */
     public String timestamp;
 
+    /**
+     * {@link #timestamp} parsed once when the event is created, minutes since
+     * midnight or -1 if the time is not known.
+     */
+    public int minutes;
+
     public Event(String name, String description, String timestamp) {
+        this(name, description, timestamp, parseMinutes(timestamp));
+    }
+
+    /**
+     * Creates event with already parsed time, see {@link #minutes}.
+     */
+    public Event(String name, String description, String timestamp, int minutes) {
         this.location = name;
         this.description = description;
         this.timestamp = timestamp;
+        this.minutes = minutes;
+    }
+
+    /**
+     * Parses time in short 24hr format (<i>18:30</i> or <i>18.30</i>).
+     *
+     * @param timestamp time as provided by the site
+     * @return minutes since midnight or -1 if the value is not a time
+     */
+    public static int parseMinutes(String timestamp) {
+        if (timestamp == null) {
+            return -1;
+        }
+        String value = timestamp.trim();
+        int separator = value.indexOf(':');
+        if (separator < 0) {
+            separator = value.indexOf('.');
+        }
+        if (separator < 1 || separator > 2 || value.length() != separator + 3) {
+            return -1;
+        }
+        int hours = 0;
+        int minutes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (i == separator) {
+                continue;
+            }
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            if (i < separator) {
+                hours = hours * 10 + digit;
+            } else {
+                minutes = minutes * 10 + digit;
+            }
+        }
+        if (hours > 24 || minutes > 59) {
+            return -1;
+        }
+        return hours * 60 + minutes;
+    }
+
+    /**
+     * Hash of all fields. Equal events produce equal hash so it can be
+     * used as stable identifier of the event between loads.
+     *
+     * @return 64 bit hash
+     */
+    public long contentHash() {
+        long hash = hash(HASH_SEED, location);
+        hash = hash(hash, description);
+        return hash(hash, timestamp);
+    }
+
+    /**
+     * Continues FNV-1a hash with the given string, null is distinct from empty string.
+     *
+     * @param hash current hash, {@link #HASH_SEED} to start
+     * @param value value to add
+     * @return new hash
+     */
+    public static long hash(long hash, String value) {
+        if (value == null) {
+            return (hash ^ 0xff) * HASH_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * HASH_PRIME;
+            hash = (hash ^ (c >>> 8)) * HASH_PRIME;
+        }
+        // separator so that ("ab", "c") and ("a", "bc") differ
+        return (hash ^ 0xfe) * HASH_PRIME;
     }
 
     @Override
@@ -0,0 +1,530 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Two tier cache of events per day. Recently used days are kept in memory (LRU) as
+ * compact {@link DaySnapshot} and every stored day is also written to a directory so
+ * it survives application restarts. The disk tier is bounded by
+ * {@link #setDiskLimits(int, long)}.
+ * <p>
+ * Days are identified by the day start epoch (seconds) as computed by
+ * {@link ContentLoader#setCalendar(java.util.Calendar)}.
+ */
+public class EventCache {
+
+    /**
+     * Cached day including the time it was stored.
+     */
+    public static class Entry {
+        public final long dayKey;
+
+        public final DaySnapshot snapshot;
+
+        /**
+         * Time in milliseconds when the entry was stored or last confirmed as valid.
+         */
+        public long storedAt;
+
+        /**
+         * URL the events were loaded from. Validators are only valid for the same URL.
+         */
+        public String url;
+
+        /**
+         * Value of <i>ETag</i> response header or null.
+         */
+        public String etag;
+
+        /**
+         * Value of <i>Last-Modified</i> response header in milliseconds or 0.
+         */
+        public long lastModified;
+
+        public Entry(long dayKey, DaySnapshot snapshot, long storedAt) {
+            this.dayKey = dayKey;
+            this.snapshot = snapshot;
+            this.storedAt = storedAt;
+        }
+
+        /**
+         * @return new map of events, see {@link DaySnapshot#toMap()}
+         */
+        public Map<String, List<Event>> getEvents() {
+            return snapshot.toMap();
+        }
+
+        /**
+         * @param url URL about to be requested
+         * @return true if the entry has validators usable for a conditional request
+         */
+        public boolean canRevalidate(String url) {
+            return url.equals(this.url) && (etag != null || lastModified > 0);
+        }
+
+        public boolean isFresh(long ttl, long now) {
+            return now - storedAt < ttl;
+        }
+    }
+
+    /**
+     * Notified when new content of a day is stored.
+     */
+    public interface Listener {
+        /**
+         * Called from the thread storing the day once the entry is in memory tier and
+         * written to disk. No cache lock is held.
+         *
+         * @param dayKey day start epoch in seconds
+         * @param snapshot stored events
+         */
+        void onStored(long dayKey, DaySnapshot snapshot);
+    }
+
+    /**
+     * Default maximum number of days kept in the disk tier.
+     */
+    public static final int DEFAULT_MAX_STORED_DAYS = 400;
+
+    /**
+     * Number of writes between two checks of the disk tier size.
+     */
+    private static final int PRUNE_INTERVAL = 32;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Directory where each day is stored as a separate file. Can be null in which
+     * case only memory tier is used.
+     */
+    private File directory;
+
+    /**
+     * Time to live in milliseconds. Entries older than this are considered stale.
+     */
+    private volatile long ttl;
+
+    /**
+     * Maximum number of files in the disk tier, least recently stored are removed first.
+     */
+    private volatile int maxStoredDays = DEFAULT_MAX_STORED_DAYS;
+
+    /**
+     * Maximum age of a file in the disk tier in milliseconds, 0 if unlimited.
+     */
+    private volatile long maxStoredAge;
+
+    private int hitCount;
+    private int diskHitCount;
+    private int missCount;
+    private int evictionCount;
+    private int writeCount;
+
+    /**
+     * Memory tier in access order so the eldest entry is the least recently used. Its
+     * monitor guards the map and counters only, disk I/O and listeners run outside of it
+     * so memory lookups never wait for the disk.
+     */
+    private final LinkedHashMap<Long, Entry> memory;
+
+    /**
+     * Serializes writes and removals of files, they share temporary file names.
+     */
+    private final Object diskLock = new Object();
+
+    public EventCache(File directory, final int maxEntries, long ttl) {
+        this.directory = directory;
+        this.ttl = ttl;
+        this.memory = new LinkedHashMap<Long, Entry>(maxEntries, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, EventCache.Entry> eldest) {
+                if (size() > maxEntries) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        if (directory != null && !directory.exists()) {
+            directory.mkdirs();
+        }
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Limits the disk tier, checked every few writes and by {@link #prune()}.
+     *
+     * @param maxStoredDays maximum number of stored days
+     * @param maxStoredAge maximum time in milliseconds since a day was stored or
+     *  confirmed, 0 if unlimited
+     */
+    public void setDiskLimits(int maxStoredDays, long maxStoredAge) {
+        this.maxStoredDays = Math.max(1, maxStoredDays);
+        this.maxStoredAge = maxStoredAge;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns fresh events for the day or null when the day is not cached or
+     * the entry has expired.
+     *
+     * @param dayKey day start epoch in seconds
+     * @return events or null
+     */
+    public DaySnapshot get(long dayKey) {
+        Entry entry = getEntry(dayKey);
+        synchronized (memory) {
+            if (entry == null || !entry.isFresh(ttl, System.currentTimeMillis())) {
+                missCount++;
+                return null;
+            }
+            hitCount++;
+        }
+        return entry.snapshot;
+    }
+
+    /**
+     * Returns fresh events only if the day is present in memory. Does not touch the
+     * disk so it is safe to call from UI thread.
+     *
+     * @param dayKey day start epoch in seconds
+     * @return events or null
+     */
+    public DaySnapshot peek(long dayKey) {
+        synchronized (memory) {
+            Entry entry = memory.get(dayKey);
+            if (entry == null || !entry.isFresh(ttl, System.currentTimeMillis())) {
+                return null;
+            }
+            hitCount++;
+            return entry.snapshot;
+        }
+    }
+
+    /**
+     * Returns the entry only if present in memory regardless of its age. Does not touch
+     * the disk so it is safe to call from UI thread.
+     *
+     * @param dayKey day start epoch in seconds
+     * @return entry or null
+     */
+    public Entry peekEntry(long dayKey) {
+        synchronized (memory) {
+            return memory.get(dayKey);
+        }
+    }
+
+    /**
+     * Returns the cached entry regardless of its age, loading it from disk
+     * if it is not in memory.
+     *
+     * @param dayKey day start epoch in seconds
+     * @return entry or null if never stored
+     */
+    public Entry getEntry(long dayKey) {
+        Entry entry = peekEntry(dayKey);
+        if (entry != null) {
+            return entry;
+        }
+        entry = readEntry(dayKey);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (memory) {
+            Entry stored = memory.get(dayKey);
+            if (stored != null) {
+                // stored by another thread while reading
+                return stored;
+            }
+            diskHitCount++;
+            memory.put(dayKey, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the entry from memory or reads it from disk without adding it to the
+     * memory tier, used to scan many days without evicting recently used ones.
+     *
+     * @param dayKey day start epoch in seconds
+     * @return entry or null if never stored
+     */
+    public Entry loadEntry(long dayKey) {
+        Entry entry = peekEntry(dayKey);
+        return entry != null ? entry : readEntry(dayKey);
+    }
+
+    /**
+     * @return keys of all days stored in either tier in ascending order
+     */
+    public long[] getStoredDays() {
+        TreeSet<Long> days;
+        synchronized (memory) {
+            days = new TreeSet<Long>(memory.keySet());
+        }
+        if (directory != null) {
+            String[] names = directory.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (name.endsWith(".snap")) {
+                        try {
+                            days.add(Long.parseLong(name.substring(0, name.length() - 5)));
+                        } catch (NumberFormatException ex) {
+                            // not a day file
+                        }
+                    }
+                }
+            }
+        }
+        long[] result = new long[days.size()];
+        int i = 0;
+        for (Long day : days) {
+            result[i++] = day;
+        }
+        return result;
+    }
+
+    /**
+     * Stores events in both tiers.
+     *
+     * @param dayKey day start epoch in seconds
+     * @param events events extracted from the site
+     * @return stored entry
+     */
+    public Entry put(long dayKey, Map<String, List<Event>> events) {
+        return put(dayKey, events, null, null, 0);
+    }
+
+    /**
+     * Stores events in both tiers together with HTTP validators used to revalidate
+     * the entry once it expires.
+     *
+     * @param dayKey day start epoch in seconds
+     * @param events events extracted from the site
+     * @param url URL events were loaded from
+     * @param etag <i>ETag</i> header or null
+     * @param lastModified <i>Last-Modified</i> header or 0
+     * @return stored entry
+     */
+    public Entry put(long dayKey, Map<String, List<Event>> events,
+            String url, String etag, long lastModified) {
+        Entry entry = new Entry(dayKey, DaySnapshot.fromMap(events), System.currentTimeMillis());
+        entry.url = url;
+        entry.etag = etag;
+        entry.lastModified = lastModified;
+
+        boolean prune;
+        synchronized (memory) {
+            memory.put(dayKey, entry);
+            prune = ++writeCount % PRUNE_INTERVAL == 0;
+        }
+        writeEntry(entry);
+        if (prune) {
+            prune();
+        }
+        for (Listener listener : listeners) {
+            listener.onStored(dayKey, entry.snapshot);
+        }
+        return entry;
+    }
+
+    /**
+     * Marks existing entry as fresh again, used when the site confirms that
+     * content has not changed.
+     *
+     * @param dayKey day start epoch in seconds
+     * @return the entry or null if it does not exist
+     */
+    public Entry touch(long dayKey) {
+        Entry entry = getEntry(dayKey);
+        if (entry != null) {
+            synchronized (memory) {
+                entry.storedAt = System.currentTimeMillis();
+            }
+            writeEntry(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Removes files of the disk tier older than the maximum age and then the least
+     * recently stored ones above the maximum count. Memory tier is not affected.
+     *
+     * @return number of removed days
+     */
+    public int prune() {
+        if (directory == null) {
+            return 0;
+        }
+        synchronized (diskLock) {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return 0;
+            }
+            List<File> days = new ArrayList<File>(files.length);
+            for (File file : files) {
+                if (file.getName().endsWith(".snap")) {
+                    days.add(file);
+                }
+            }
+            Collections.sort(days, new Comparator<File>() {
+                @Override
+                public int compare(File left, File right) {
+                    long difference = left.lastModified() - right.lastModified();
+                    return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+                }
+            });
+
+            long oldest = maxStoredAge > 0 ? System.currentTimeMillis() - maxStoredAge : 0;
+            int removed = 0;
+            for (File file : days) {
+                boolean excess = days.size() - removed > maxStoredDays;
+                if ((excess || file.lastModified() < oldest) && file.delete()) {
+                    removed++;
+                } else if (!excess) {
+                    break;
+                }
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Removes all entries from memory and disk.
+     */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+        }
+        if (directory != null) {
+            synchronized (diskLock) {
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    public int getHitCount() {
+        synchronized (memory) {
+            return hitCount;
+        }
+    }
+
+    public int getDiskHitCount() {
+        synchronized (memory) {
+            return diskHitCount;
+        }
+    }
+
+    public int getMissCount() {
+        synchronized (memory) {
+            return missCount;
+        }
+    }
+
+    public int getEvictionCount() {
+        synchronized (memory) {
+            return evictionCount;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (memory) {
+            return String.format("hits=%d (disk %d), misses=%d, evictions=%d, size=%d",
+                hitCount, diskHitCount, missCount, evictionCount, memory.size());
+        }
+    }
+
+    private File getFile(long dayKey) {
+        return new File(directory, dayKey + ".snap");
+    }
+
+    /**
+     * Reads entry from the disk. Any problem with the file is treated as a miss.
+     */
+    private Entry readEntry(long dayKey) {
+        if (directory == null) {
+            return null;
+        }
+        File file = getFile(dayKey);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return SnapshotFormat.read(file);
+        } catch (IOException ex) {
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Writes entry, see {@link SnapshotFormat#write(File, Entry)}. Skipped if a newer
+     * entry of the day replaced it in memory meanwhile, that one writes itself.
+     */
+    private void writeEntry(Entry entry) {
+        if (directory == null) {
+            return;
+        }
+        synchronized (diskLock) {
+            synchronized (memory) {
+                Entry current = memory.get(entry.dayKey);
+                if (current != null && current != entry) {
+                    return;
+                }
+            }
+            try {
+                SnapshotFormat.write(getFile(entry.dayKey), entry);
+            } catch (IOException ex) {
+                // entry remains in memory, disk tier only misses this day
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Writes stored days of a date range as iCalendar or JSON. Days are read one at a time
+ * with {@link EventCache#loadEntry(long)} and written straight from
+ * their {@link DaySnapshot}, so memory use does not depend on the length of the range.
+ * Days that are not stored are skipped.
+ */
+public class EventExporter {
+
+    /**
+     * iCalendar (RFC 5545) with an event for each row, events without time last all day.
+     */
+    public static final String ICALENDAR = "ics";
+
+    /**
+     * JSON object with an array of events.
+     */
+    public static final String JSON = "json";
+
+    private final EventCache cache;
+
+    public EventExporter(EventCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param format {@link #ICALENDAR} or {@link #JSON}
+     * @return media type of the format
+     */
+    public static String getContentType(String format) {
+        return ICALENDAR.equals(format) ? "text/calendar" : "application/json";
+    }
+
+    /**
+     * Writes events of stored days between the keys inclusive.
+     *
+     * @param fromDay key of the first day
+     * @param toDay key of the last day
+     * @param format {@link #ICALENDAR} or {@link #JSON}
+     * @param out destination, not closed, should be buffered
+     * @return number of events written
+     * @throws IOException if writing fails
+     */
+    public int export(long fromDay, long toDay, String format, Writer out) throws IOException {
+        Sink sink = ICALENDAR.equals(format) ? new CalendarSink(out) : new JsonSink(out);
+        sink.begin(fromDay, toDay);
+        int count = 0;
+        for (long dayKey : cache.getStoredDays()) {
+            if (dayKey < fromDay || dayKey > toDay) {
+                continue;
+            }
+            // not added to memory tier, the day is garbage once it is written
+            EventCache.Entry entry = cache.loadEntry(dayKey);
+            if (entry == null) {
+                continue;
+            }
+            DaySnapshot snapshot = entry.snapshot;
+            Calendar day = ContentLoader.getDay(dayKey);
+            for (int group = 0; group < snapshot.getCategoryCount(); group++) {
+                for (int position = snapshot.getStart(group);
+                        position < snapshot.getEnd(group); position++) {
+                    sink.event(dayKey, day, snapshot, group, position);
+                    count++;
+                }
+            }
+        }
+        sink.end();
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Converts HTML of a cell to plain text: tags are removed, common entities decoded
+     * and whitespace collapsed.
+     *
+     * @param html cell content
+     * @return text
+     */
+    static String toText(String html) {
+        StringBuilder text = new StringBuilder(html.length());
+        boolean space = false;
+        int length = html.length();
+        for (int i = 0; i < length; i++) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                int end = html.indexOf('>', i);
+                if (end > 0) {
+                    i = end;
+                    c = ' ';
+                }
+            } else if (c == '&') {
+                int end = html.indexOf(';', i);
+                if (end > 0 && end - i <= 8) {
+                    int decoded = decodeEntity(html.substring(i + 1, end));
+                    if (decoded >= 0) {
+                        i = end;
+                        c = (char) decoded;
+                    }
+                }
+            }
+            if (Character.isWhitespace(c) || c == '\u00a0') {
+                space = text.length() > 0;
+                continue;
+            }
+            if (space) {
+                text.append(' ');
+                space = false;
+            }
+            text.append(c);
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param name entity without <i>&amp;</i> and <i>;</i>
+     * @return character or -1 if not known
+     */
+    private static int decodeEntity(String name) {
+        if (name.startsWith("#")) {
+            try {
+                int value = name.startsWith("#x") || name.startsWith("#X")
+                    ? Integer.parseInt(name.substring(2), 16) : Integer.parseInt(name.substring(1));
+                return value > 0 && value <= 0xffff ? value : -1;
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+        if (name.equals("amp")) {
+            return '&';
+        } else if (name.equals("lt")) {
+            return '<';
+        } else if (name.equals("gt")) {
+            return '>';
+        } else if (name.equals("quot")) {
+            return '"';
+        } else if (name.equals("apos")) {
+            return '\'';
+        } else if (name.equals("nbsp")) {
+            return ' ';
+        }
+        return -1;
+    }
+
+    /**
+     * Receives events in order of days and categories.
+     */
+    private abstract static class Sink {
+        protected final Writer out;
+
+        Sink(Writer out) {
+            this.out = out;
+        }
+
+        abstract void begin(long fromDay, long toDay) throws IOException;
+
+        abstract void event(long dayKey, Calendar day, DaySnapshot snapshot, int group,
+            int position) throws IOException;
+
+        abstract void end() throws IOException;
+
+        /**
+         * Writes the number zero padded to the width.
+         */
+        void writeNumber(int value, int width) throws IOException {
+            String digits = String.valueOf(value);
+            for (int i = digits.length(); i < width; i++) {
+                out.write('0');
+            }
+            out.write(digits);
+        }
+
+        /**
+         * Writes date as yyyy-MM-dd, or yyyyMMdd when separator is 0.
+         */
+        void writeDate(Calendar day, char separator) throws IOException {
+            writeNumber(day.get(Calendar.YEAR), 4);
+            if (separator != 0) {
+                out.write(separator);
+            }
+            writeNumber(day.get(Calendar.MONTH) + 1, 2);
+            if (separator != 0) {
+                out.write(separator);
+            }
+            writeNumber(day.get(Calendar.DAY_OF_MONTH), 2);
+        }
+    }
+
+    private static class CalendarSink extends Sink {
+        /**
+         * Maximum length of a content line in octets, longer lines are folded.
+         */
+        private static final int LINE_LENGTH = 75;
+
+        private final StringBuilder line = new StringBuilder(256);
+
+        private final Calendar time = Calendar.getInstance();
+
+        private String stamp;
+
+        CalendarSink(Writer out) {
+            super(out);
+        }
+
+        @Override
+        void begin(long fromDay, long toDay) throws IOException {
+            Calendar now = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            stamp = String.format("%04d%02d%02dT%02d%02d%02dZ", now.get(Calendar.YEAR),
+                now.get(Calendar.MONTH) + 1, now.get(Calendar.DAY_OF_MONTH),
+                now.get(Calendar.HOUR_OF_DAY), now.get(Calendar.MINUTE), now.get(Calendar.SECOND));
+            out.write("BEGIN:VCALENDAR\r\n");
+            out.write("VERSION:2.0\r\n");
+            out.write("PRODID:-//mindmutex.com//Liepajas Afisa//LV\r\n");
+            out.write("CALSCALE:GREGORIAN\r\n");
+        }
+
+        @Override
+        void event(long dayKey, Calendar day, DaySnapshot snapshot, int group, int position)
+                throws IOException {
+            out.write("BEGIN:VEVENT\r\n");
+            out.write("UID:");
+            out.write(Long.toHexString(snapshot.contentHash(position)));
+            out.write('-');
+            out.write(String.valueOf(dayKey));
+            out.write("@liepaja.mindmutex.com\r\n");
+            out.write("DTSTAMP:");
+            out.write(stamp);
+            out.write("\r\n");
+
+            int minutes = snapshot.getMinutes(position);
+            if (minutes < 0) {
+                out.write("DTSTART;VALUE=DATE:");
+                writeDate(day, (char) 0);
+            } else {
+                // times after midnight belong to the next date
+                time.setTimeInMillis(day.getTimeInMillis());
+                time.add(Calendar.MINUTE, minutes);
+                out.write("DTSTART:");
+                writeDate(time, (char) 0);
+                out.write('T');
+                writeNumber(time.get(Calendar.HOUR_OF_DAY), 2);
+                writeNumber(time.get(Calendar.MINUTE), 2);
+                out.write("00");
+            }
+            out.write("\r\n");
+
+            writeText("SUMMARY:", snapshot.getDescription(position));
+            writeText("LOCATION:", snapshot.getLocation(position));
+            writeText("CATEGORIES:", snapshot.getCategory(group));
+            out.write("END:VEVENT\r\n");
+        }
+
+        @Override
+        void end() throws IOException {
+            out.write("END:VCALENDAR\r\n");
+        }
+
+        /**
+         * Writes escaped text property folded to {@link #LINE_LENGTH} octets.
+         */
+        private void writeText(String name, String html) throws IOException {
+            String text = toText(html);
+            if (text.length() == 0) {
+                return;
+            }
+            line.setLength(0);
+            line.append(name);
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '\\' || c == ';' || c == ',') {
+                    line.append('\\');
+                }
+                line.append(c);
+            }
+
+            int octets = 0;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                int size = c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isHighSurrogate(c) ? 4 : 3;
+                if (Character.isLowSurrogate(c)) {
+                    size = 0;
+                }
+                if (octets + size > LINE_LENGTH) {
+                    // continuation line starts with a space
+                    out.write("\r\n ");
+                    octets = 1;
+                }
+                out.write(c);
+                octets += size;
+            }
+            out.write("\r\n");
+        }
+    }
+
+    private static class JsonSink extends Sink {
+        private boolean first = true;
+
+        JsonSink(Writer out) {
+            super(out);
+        }
+
+        @Override
+        void begin(long fromDay, long toDay) throws IOException {
+            out.write("{\"from\":\"");
+            writeDate(ContentLoader.getDay(fromDay), '-');
+            out.write("\",\"to\":\"");
+            writeDate(ContentLoader.getDay(toDay), '-');
+            out.write("\",\"events\":[");
+        }
+
+        @Override
+        void event(long dayKey, Calendar day, DaySnapshot snapshot, int group, int position)
+                throws IOException {
+            out.write(first ? "\n{\"date\":\"" : ",\n{\"date\":\"");
+            first = false;
+            writeDate(day, '-');
+            out.write("\",\"time\":");
+            String timestamp = snapshot.getTimestamp(position);
+            if (timestamp.length() == 0) {
+                out.write("null");
+            } else {
+                writeString(timestamp);
+            }
+            out.write(",\"minutes\":");
+            int minutes = snapshot.getMinutes(position);
+            out.write(minutes < 0 ? "null" : String.valueOf(minutes));
+            out.write(",\"category\":");
+            writeString(toText(snapshot.getCategory(group)));
+            out.write(",\"location\":");
+            writeString(toText(snapshot.getLocation(position)));
+            out.write(",\"description\":");
+            writeString(toText(snapshot.getDescription(position)));
+            out.write('}');
+        }
+
+        @Override
+        void end() throws IOException {
+            out.write("\n]}\n");
+        }
+
+        private void writeString(String value) throws IOException {
+            out.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.write('\\');
+                    out.write(c);
+                } else if (c < 0x20) {
+                    out.write(String.format("\\u%04x", (int) c));
+                } else {
+                    out.write(c);
+                }
+            }
+            out.write('"');
+        }
+    }
+}
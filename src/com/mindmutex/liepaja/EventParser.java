@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts events from the HTML page provided by liepajniekiem.lv.
+ * <p>
+ * Implementations must return categories in the order they appear on the page and
+ * throw {@link IllegalStateException} when the page does not contain the events table.
+ */
+public interface EventParser {
+
+    /**
+     * Notified while the page is being parsed.
+     */
+    interface CategoryListener {
+
+        /**
+         * Called once rows of a category end, i.e. next category starts or the table ends.
+         *
+         * @param category name of the category
+         * @param events events of the category, the list may still grow if the
+         *               same category appears again later on the page
+         */
+        void onCategory(String category, List<Event> events);
+    }
+
+    /**
+     * Parses the page.
+     *
+     * @param reader page content, implementation does not close the reader
+     * @param listener optional listener notified as categories are extracted, can be null
+     * @return events where the key is category and value a list of events attached to the category
+     * @throws IOException when reading fails or page can not be parsed
+     */
+    Map<String, List<Event>> parse(Reader reader, CategoryListener listener) throws IOException;
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Page listing events of a day together with the {@link ExtractionPlan} of its table.
+ * Sources are configured one per line of <i>sources</i> preference as the URL
+ * optionally followed by the plan:
+ * <pre>
+ * http://example.lv/afisa/?date={date} table.events/tr:time,description,location,category
+ * </pre>
+ * Placeholder <i>{day}</i> is replaced by the day key and <i>{date}</i> by the date in
+ * yyyy-MM-dd format. URL without placeholders gets the day key as query string like
+ * <i>site_url</i>.
+ */
+public class EventSource {
+
+    private final String url;
+
+    private final ExtractionPlan plan;
+
+    private final String parser;
+
+    /**
+     * @param url URL or URL template of the page
+     * @param plan extraction plan of the page
+     * @param parser parser name, see {@link ContentLoader#createParser(String, ExtractionPlan)}
+     */
+    public EventSource(String url, ExtractionPlan plan, String parser) {
+        this.url = url;
+        this.plan = plan;
+        this.parser = parser;
+    }
+
+    /**
+     * Parses a line of <i>sources</i> preference.
+     *
+     * @param line URL optionally followed by whitespace and plan specification
+     * @param parser parser name
+     * @return source
+     * @throws IllegalArgumentException if the URL or plan is not valid
+     */
+    public static EventSource parse(String line, String parser) {
+        String[] parts = line.trim().split("\\s+", 2);
+        if (!parts[0].startsWith("http://") && !parts[0].startsWith("https://")) {
+            throw new IllegalArgumentException("Not a HTTP URL: " + parts[0]);
+        }
+        ExtractionPlan plan = parts.length > 1
+            ? ExtractionPlan.compile(parts[1]) : ExtractionPlan.getDefault();
+        return new EventSource(parts[0], plan, parser);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public ExtractionPlan getPlan() {
+        return plan;
+    }
+
+    public EventParser createParser() {
+        return ContentLoader.createParser(parser, plan);
+    }
+
+    /**
+     * @param template URL possibly containing placeholders
+     * @return true if the template contains <i>{day}</i> or <i>{date}</i>
+     */
+    static boolean isTemplate(String template) {
+        return template.indexOf("{day}") >= 0 || template.indexOf("{date}") >= 0;
+    }
+
+    /**
+     * Replaces placeholders of the template.
+     *
+     * @param template URL template
+     * @param dayKey day key
+     * @param day date of the day
+     * @return URL of the day
+     */
+    static String expand(String template, long dayKey, Calendar day) {
+        String date = String.format("%04d-%02d-%02d", day.get(Calendar.YEAR),
+            day.get(Calendar.MONTH) + 1, day.get(Calendar.DAY_OF_MONTH));
+        return template.replace("{day}", String.valueOf(dayKey)).replace("{date}", date);
+    }
+
+    /**
+     * Appends all events of the site to merged events. Rows of the site are never
+     * dropped, even if two of them look the same, their keys are recorded so additional
+     * sources do not repeat them.
+     *
+     * @param target merged events, categories keep the order they were first seen in
+     * @param events events of the site
+     * @param seen keys of merged events, see {@link #getDuplicateKey(Event)}
+     * @return number of events added
+     */
+    static int add(Map<String, List<Event>> target, Map<String, List<Event>> events,
+            Set<String> seen) {
+        return append(target, events, seen, false);
+    }
+
+    /**
+     * Appends events of an additional source to merged events, events already present
+     * under any category are skipped.
+     *
+     * @param target merged events, categories keep the order they were first seen in
+     * @param events events of a source
+     * @param seen keys of merged events, see {@link #getDuplicateKey(Event)}
+     * @return number of events added
+     */
+    static int merge(Map<String, List<Event>> target, Map<String, List<Event>> events,
+            Set<String> seen) {
+        return append(target, events, seen, true);
+    }
+
+    private static int append(Map<String, List<Event>> target, Map<String, List<Event>> events,
+            Set<String> seen, boolean skipDuplicates) {
+        int added = 0;
+        for (Map.Entry<String, List<Event>> category : events.entrySet()) {
+            List<Event> merged = target.get(category.getKey());
+            for (Event event : category.getValue()) {
+                if (!seen.add(getDuplicateKey(event)) && skipDuplicates) {
+                    continue;
+                }
+                if (merged == null) {
+                    merged = new ArrayList<Event>();
+                    target.put(category.getKey(), merged);
+                }
+                merged.add(event);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Events are the same if they start at the same time and have the same name and
+     * description regardless of case, diacritics and markup.
+     *
+     * @param event event
+     * @return key equal for duplicate events
+     */
+    static String getDuplicateKey(Event event) {
+        List<String> words = new ArrayList<String>();
+        SearchIndex.tokenize(event.location, words);
+        // separates name from description so words can not move between them
+        words.add("|");
+        SearchIndex.tokenize(event.description, words);
+        StringBuilder key = new StringBuilder(event.timestamp == null ? "" : event.timestamp.trim());
+        for (String word : words) {
+            key.append(' ').append(word);
+        }
+        return key.toString();
+    }
+
+    @Override
+    public String toString() {
+        return url + " " + plan;
+    }
+}
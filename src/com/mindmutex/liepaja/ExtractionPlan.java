@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+/**
+ * Describes where events are located on the page: container element, row element and
+ * meaning of each cell in a row. Compiled once from a textual specification so a
+ * changed site layout can be handled in preferences (<i>extraction_plan</i>).
+ * <p>
+ * Specification has the form <i>container/row:columns</i>, for example the default
+ * {@value #DEFAULT_SPEC}. Container is a tag name followed by <i>#id</i> or
+ * <i>.class</i>. Columns are a comma separated list of <i>category</i>,
+ * <i>location</i>, <i>time</i>, <i>description</i> or <i>-</i> for a cell to ignore;
+ * rows with a different number of cells are skipped. Only category is mandatory.
+ */
+public final class ExtractionPlan {
+
+    public static final String DEFAULT_SPEC = "div#events/tr:category,location,time,description";
+
+    /**
+     * Category cell with this content continues the category of the previous row.
+     */
+    public static final String CONTINUATION = "&nbsp;";
+
+    private static ExtractionPlan defaultPlan;
+
+    private final String spec;
+
+    private final String containerTag;
+
+    /**
+     * <i>id</i> or <i>class</i>.
+     */
+    private final String containerAttribute;
+
+    private final String containerValue;
+
+    private final String rowTag;
+
+    private final int columns;
+
+    private final int categoryColumn;
+
+    private final int locationColumn;
+
+    private final int timeColumn;
+
+    private final int descriptionColumn;
+
+    private ExtractionPlan(String spec, String containerTag, String containerAttribute,
+            String containerValue, String rowTag, String[] names) {
+        this.spec = spec;
+        this.containerTag = containerTag;
+        this.containerAttribute = containerAttribute;
+        this.containerValue = containerValue;
+        this.rowTag = rowTag;
+        this.columns = names.length;
+        this.categoryColumn = indexOf(names, "category");
+        this.locationColumn = indexOf(names, "location");
+        this.timeColumn = indexOf(names, "time");
+        this.descriptionColumn = indexOf(names, "description");
+    }
+
+    /**
+     * @return plan for {@link #DEFAULT_SPEC}
+     */
+    public static synchronized ExtractionPlan getDefault() {
+        if (defaultPlan == null) {
+            defaultPlan = compile(DEFAULT_SPEC);
+        }
+        return defaultPlan;
+    }
+
+    /**
+     * Parses the specification, see class documentation for the format.
+     *
+     * @param spec plan specification
+     * @return compiled plan
+     * @throws IllegalArgumentException if the specification is not valid
+     */
+    public static ExtractionPlan compile(String spec) {
+        String trimmed = spec.trim();
+        int slash = trimmed.indexOf('/');
+        int colon = trimmed.indexOf(':', slash + 1);
+        if (slash <= 0 || colon < 0) {
+            throw new IllegalArgumentException("Expected container/row:columns in " + spec);
+        }
+        String container = trimmed.substring(0, slash).trim().toLowerCase();
+        String rowTag = trimmed.substring(slash + 1, colon).trim().toLowerCase();
+
+        int marker = Math.max(container.indexOf('#'), container.indexOf('.'));
+        if (marker <= 0 || marker == container.length() - 1 || rowTag.length() == 0) {
+            throw new IllegalArgumentException("Expected tag#id or tag.class in " + spec);
+        }
+        String attribute = container.charAt(marker) == '#' ? "id" : "class";
+
+        String[] names = trimmed.substring(colon + 1).split(",");
+        for (int i = 0; i < names.length; i++) {
+            names[i] = names[i].trim().toLowerCase();
+            if (!names[i].equals("-") && !names[i].equals("category")
+                    && !names[i].equals("location") && !names[i].equals("time")
+                    && !names[i].equals("description")) {
+                throw new IllegalArgumentException("Unknown column " + names[i] + " in " + spec);
+            }
+            if (!names[i].equals("-") && indexOf(names, names[i]) != i) {
+                throw new IllegalArgumentException("Duplicate column " + names[i] + " in " + spec);
+            }
+        }
+        if (indexOf(names, "category") < 0) {
+            throw new IllegalArgumentException("Missing category column in " + spec);
+        }
+        return new ExtractionPlan(trimmed, container.substring(0, marker), attribute,
+            trimmed.substring(marker + 1, slash).trim(), rowTag, names);
+    }
+
+    /**
+     * Compiles the specification falling back to the default plan when it is not valid.
+     *
+     * @param spec plan specification or null
+     * @return compiled plan
+     */
+    public static ExtractionPlan compileOrDefault(String spec) {
+        if (spec == null || spec.trim().equals(getDefault().spec)) {
+            return getDefault();
+        }
+        try {
+            return compile(spec);
+        } catch (IllegalArgumentException ex) {
+            return getDefault();
+        }
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param tag element name in lower case
+     * @param attribute value of {@link #getContainerAttribute()} or null
+     * @return true if the element contains events
+     */
+    public boolean isContainer(CharSequence tag, String attribute) {
+        if (attribute == null || !equals(tag, containerTag)) {
+            return false;
+        }
+        if (containerAttribute.equals("id")) {
+            return attribute.equals(containerValue);
+        }
+        for (String name : attribute.split("\\s+")) {
+            if (name.equals(containerValue)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares without creating string from the builder used by parsers.
+     */
+    static boolean equals(CharSequence name, String tag) {
+        if (name.length() != tag.length()) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (name.charAt(i) != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param cells cell text of a row with {@link #getColumns()} cells
+     * @return category or null if the row continues previous category
+     */
+    public String getCategory(String[] cells) {
+        String category = cells[categoryColumn];
+        return category.equals(CONTINUATION) ? null : category;
+    }
+
+    /**
+     * @param cells cell text of a row with {@link #getColumns()} cells
+     * @return event described by the row, missing columns are empty
+     */
+    public Event createEvent(String[] cells) {
+        return new Event(
+            locationColumn < 0 ? "" : cells[locationColumn],
+            descriptionColumn < 0 ? "" : cells[descriptionColumn],
+            timeColumn < 0 ? "" : cells[timeColumn]);
+    }
+
+    public String getContainerTag() {
+        return containerTag;
+    }
+
+    public String getContainerAttribute() {
+        return containerAttribute;
+    }
+
+    public String getRowTag() {
+        return rowTag;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link Transport} serving pages saved in a directory, used by tests and benchmarks.
+ * <p>
+ * Query string of the URL (the day key) selects the file <i>&lt;query&gt;.html</i>,
+ * when it does not exist <i>&lt;query&gt;.html.gz</i> is served gzip encoded and
+ * <i>default.html</i> is used as the last resort.
+ */
+public class FileTransport implements Transport {
+
+    private final File directory;
+
+    public FileTransport(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public Exchange open(String url) throws IOException {
+        int query = url.indexOf('?');
+        String name = query < 0 ? "default" : url.substring(query + 1);
+
+        File file = new File(directory, name + ".html");
+        String encoding = null;
+        if (!file.isFile()) {
+            File compressed = new File(directory, name + ".html.gz");
+            if (compressed.isFile()) {
+                file = compressed;
+                encoding = "gzip";
+            } else {
+                file = new File(directory, "default.html");
+            }
+        }
+        if (!file.isFile()) {
+            throw new FileNotFoundException(url);
+        }
+        return new FileExchange(file, encoding);
+    }
+
+    private static class FileExchange extends Exchange {
+        private final File file;
+
+        private volatile InputStream body;
+
+        FileExchange(File file, String encoding) {
+            this.file = file;
+            this.contentEncoding = encoding;
+            this.contentType = "text/html; charset=UTF-8";
+        }
+
+        @Override
+        public int execute() throws IOException {
+            lastModified = file.lastModified();
+            etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(file.length()) + "\"";
+            if (etag.equals(requestEtag)) {
+                return NOT_MODIFIED;
+            }
+            return OK;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                body = new BufferedInputStream(new FileInputStream(file), 8192);
+            }
+            return body;
+        }
+
+        @Override
+        public void close() {
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException ex) {
+                    // nothing to release
+                }
+            }
+        }
+
+        @Override
+        public void abort() {
+            close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.htmlcleaner.ContentNode;
+import org.htmlcleaner.HtmlCleaner;
+import org.htmlcleaner.TagNode;
+
+/**
+ * {@link EventParser} that builds complete DOM using {@link HtmlCleaner} and walks it
+ * according to {@link ExtractionPlan}.
+ */
+public class HtmlCleanerEventParser implements EventParser {
+
+    /**
+     * {@link HtmlCleaner} used to build the DOM.
+     */
+    private HtmlCleaner htmlCleaner = null;
+
+    private final ExtractionPlan plan;
+
+    public HtmlCleanerEventParser() {
+        this(ExtractionPlan.getDefault());
+    }
+
+    public HtmlCleanerEventParser(ExtractionPlan plan) {
+        this.plan = plan;
+    }
+
+    /**
+     * Keep a single instance of {@link #htmlCleaner} per instance.
+     * @return {@link #htmlCleaner}
+     */
+    private HtmlCleaner getHtmlCleaner() {
+        if (htmlCleaner == null) {
+            htmlCleaner = new HtmlCleaner();
+        }
+        return htmlCleaner;
+    }
+
+    @Override
+    public Map<String, List<Event>> parse(Reader reader, CategoryListener listener)
+            throws IOException {
+        Map<String, List<Event>> events = new LinkedHashMap<String, List<Event>>();
+
+        TagNode root = getHtmlCleaner().clean(reader);
+        LoadMetrics.mark(LoadMetrics.CLEAN);
+
+        TagNode container = findContainer(root);
+        if (container == null) {
+            throw new IllegalStateException();
+        }
+
+        String[] cells = new String[plan.getColumns()];
+        String category = null;
+        List<Event> categoryEvents = null;
+        for (TagNode row : container.getElementsByName(plan.getRowTag(), true)) {
+            if (!readCells(row, cells)) {
+                continue;
+            }
+            String tempCategory = plan.getCategory(cells);
+            if (tempCategory != null) {
+                if (listener != null && category != null) {
+                    listener.onCategory(category, categoryEvents);
+                }
+                category = tempCategory;
+                categoryEvents = events.get(category);
+                if (categoryEvents == null) {
+                    categoryEvents = new ArrayList<Event>();
+                    events.put(category, categoryEvents);
+                }
+            }
+            if (category == null) {
+                continue;
+            }
+            categoryEvents.add(plan.createEvent(cells));
+        }
+        if (listener != null && category != null) {
+            listener.onCategory(category, categoryEvents);
+        }
+        return events;
+    }
+
+    /**
+     * Reads cell text of the row. Like the original XPath extraction every child counts,
+     * text directly inside the row included, so rows with other content than exactly
+     * the planned cells are skipped. Whitespace and comments between cells are ignored
+     * and cell text is trimmed, same as {@link StreamingEventParser}.
+     *
+     * @param row row element
+     * @param cells array filled with cell text
+     * @return true if the row has the planned number of children and is not a header
+     */
+    @SuppressWarnings("unchecked")
+    private boolean readCells(TagNode row, String[] cells) {
+        List<Object> children = row.getChildren();
+        int count = 0;
+        for (Object child : children) {
+            if (isBlank(child)) {
+                continue;
+            }
+            if (count == cells.length
+                    || (count == 0 && child instanceof TagNode
+                        && ((TagNode) child).getName().equals("th"))) {
+                return false;
+            }
+            cells[count++] = extractNodeTextIfPossible(child).trim();
+        }
+        return count == cells.length;
+    }
+
+    /**
+     * @return true for comments and whitespace between cells
+     */
+    private static boolean isBlank(Object node) {
+        if (node instanceof TagNode) {
+            return false;
+        }
+        if (node instanceof ContentNode) {
+            return ((ContentNode) node).getContent().toString().trim().length() == 0;
+        }
+        return true;
+    }
+
+    /**
+     * Depth first search for the element holding events.
+     *
+     * @param node element to start from
+     * @return container element or null
+     */
+    private TagNode findContainer(TagNode node) {
+        if (plan.isContainer(node.getName(), node.getAttributeByName(plan.getContainerAttribute()))) {
+            return node;
+        }
+        for (TagNode child : node.getChildTags()) {
+            TagNode container = findContainer(child);
+            if (container != null) {
+                return container;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Attempt to extract the text of the cell node.
+     *
+     * @param node HTML node of the cell
+     * @return node text otherwise {@link IllegalStateException} is thrown
+     */
+    protected String extractNodeTextIfPossible(Object node) {
+        if (node instanceof TagNode) {
+            return ((TagNode) node).getText().toString();
+        }
+        if (node instanceof ContentNode) {
+            return ((ContentNode) node).getContent().toString();
+        } else {
+            throw new IllegalStateException("Unexpected node type");
+        }
+    }
+}
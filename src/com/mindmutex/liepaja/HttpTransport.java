@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+
+/**
+ * {@link Transport} using {@link HttpURLConnection}.
+ * <p>
+ * Responses are fully read before closing so the connection returns to the keep-alive
+ * pool and is reused by the next day load. Connect and read timeouts are applied and
+ * failures to obtain a response as well as server errors (5xx) are retried with
+ * exponential backoff and random jitter.
+ */
+public class HttpTransport implements Transport {
+
+    /**
+     * Maximum number of remaining body bytes read on close to keep the connection alive.
+     */
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    private final Random random = new Random();
+
+    private volatile int connectTimeout;
+
+    private volatile int readTimeout;
+
+    private volatile int retries;
+
+    /**
+     * Delay before the first retry, doubled with each attempt.
+     */
+    private volatile long retryDelay;
+
+    public HttpTransport() {
+        this(15000, 30000, 2, 500);
+    }
+
+    /**
+     * @param connectTimeout connect timeout in milliseconds
+     * @param readTimeout read timeout in milliseconds
+     * @param retries number of retries after the first attempt
+     * @param retryDelay delay before the first retry in milliseconds
+     */
+    public HttpTransport(int connectTimeout, int readTimeout, int retries, long retryDelay) {
+        configure(connectTimeout, readTimeout, retries, retryDelay);
+    }
+
+    public void configure(int connectTimeout, int readTimeout, int retries, long retryDelay) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.retries = retries;
+        this.retryDelay = retryDelay;
+    }
+
+    @Override
+    public Exchange open(String url) throws IOException {
+        return new HttpExchange(new URL(url));
+    }
+
+    /**
+     * @param attempt retry number starting from 0
+     * @return delay with jitter, between half and full exponential delay
+     */
+    long getRetryDelay(int attempt) {
+        long delay = retryDelay << Math.min(attempt, 10);
+        synchronized (random) {
+            return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        }
+    }
+
+    private class HttpExchange extends Exchange {
+        private final URL url;
+
+        private volatile HttpURLConnection connection;
+
+        private volatile boolean aborted;
+
+        private InputStream body;
+
+        /**
+         * Status of the last attempt, error responses are drained from the error stream.
+         */
+        private int status;
+
+        HttpExchange(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        public int execute() throws IOException {
+            int attempt = 0;
+            while (true) {
+                IOException failure;
+                try {
+                    int code = attempt();
+                    if (code < 500 || aborted || attempt >= retries) {
+                        return code;
+                    }
+                    // server error, release the connection and try again
+                    close();
+                    failure = new IOException("HTTP " + code);
+                } catch (IOException ex) {
+                    if (aborted || attempt >= retries) {
+                        throw ex;
+                    }
+                    if (connection != null) {
+                        connection.disconnect();
+                    }
+                    failure = ex;
+                }
+                body = null;
+                try {
+                    Thread.sleep(getRetryDelay(attempt++));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw failure;
+                }
+            }
+        }
+
+        private int attempt() throws IOException {
+            if (aborted) {
+                throw new IOException("Cancelled");
+            }
+            HttpURLConnection http = (HttpURLConnection) url.openConnection();
+            http.setConnectTimeout(connectTimeout);
+            http.setReadTimeout(readTimeout);
+            http.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            if (requestEtag != null) {
+                http.setRequestProperty("If-None-Match", requestEtag);
+            }
+            if (requestLastModified > 0) {
+                http.setIfModifiedSince(requestLastModified);
+            }
+            connection = http;
+            if (aborted) {
+                throw new IOException("Cancelled");
+            }
+            http.connect();
+            LoadMetrics.mark(LoadMetrics.CONNECT);
+
+            status = http.getResponseCode();
+            etag = http.getHeaderField("ETag");
+            lastModified = http.getLastModified();
+            contentType = http.getContentType();
+            contentEncoding = http.getContentEncoding();
+            return status;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                body = connection.getInputStream();
+            }
+            return body;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (body == null && connection != null) {
+                    body = status >= 400
+                        ? connection.getErrorStream() : connection.getInputStream();
+                }
+                if (body != null) {
+                    // read the rest so the connection can be reused
+                    byte[] buffer = new byte[4096];
+                    int drained = 0;
+                    int read;
+                    while (drained < MAX_DRAIN && (read = body.read(buffer)) > 0) {
+                        drained += read;
+                    }
+                    body.close();
+                }
+            } catch (IOException ex) {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+            HttpURLConnection current = connection;
+            if (current != null) {
+                current.disconnect();
+            }
+        }
+    }
+}
@@ -21,8 +21,11 @@
  */
 package com.mindmutex.liepaja;
 
+import java.io.File;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -32,12 +35,15 @@ import android.app.DatePickerDialog.OnDateSetListener;
 import android.app.ExpandableListActivity;
 import android.app.ProgressDialog;
 import android.content.DialogInterface;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.DialogInterface.OnClickListener;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -52,11 +58,66 @@ import android.widget.ExpandableListView;
  * <p>
  * Implements expandable list view to view events per
  * category including buttons to refresh and switch between dates.
- * 
- * TODO: implement cache.
+ * <p>
+ * Loaded days are kept in {@link EventCache} so switching between dates does not
+ * contact the site unless the entry has expired or refresh is requested.
  */
 public class LiepajasAfisa extends ExpandableListActivity implements OnDateSetListener {
 
+    private static final String TAG = "LiepajasAfisa";
+
+    /**
+     * Length of the window expanded in timeline, see {@link #showCurrentTime()}.
+     */
+    private static final int UPCOMING_MINUTES = 2 * 60;
+
+    /**
+     * Request code of {@link MonthActivity}.
+     */
+    private static final int REQUEST_MONTH = 1;
+
+    /**
+     * Handler of the selected day receiving categories as they are parsed, the
+     * difference against the stored version and the loader that ran.
+     */
+    private interface LoadHandler
+            extends ProgressiveContentHandler, DeltaContentHandler, ReportingContentHandler {
+    }
+
+    /**
+     * Cache shared by all instances of the activity so it survives configuration changes.
+     */
+    private static EventCache eventCache = null;
+
+    /**
+     * Pool shared by all instances of the activity that runs loads and prefetches.
+     */
+    private static ContentLoaderPool loaderPool = null;
+
+    /**
+     * Last compiled extraction plan, see {@link #getExtractionPlan(Context)}.
+     */
+    private static ExtractionPlan extractionPlan = null;
+
+    /**
+     * Index of stored days, see {@link #getSearchIndex(Context)}.
+     */
+    private static SearchIndex searchIndex = null;
+
+    /**
+     * Counts of stored days, see {@link #getMonthIndex(Context)}.
+     */
+    private static MonthIndex monthIndex = null;
+
+    private static String extractionPlanSpec = null;
+
+    /**
+     * Additional sources parsed from preferences and the text they were parsed from, see
+     * {@link #getSources(Context)}.
+     */
+    private static List<EventSource> sources = null;
+    private static String sourcesSpec = null;
+
     /**
      * {@link Handler} used to send UI requests from non UI threads.
      * See documentation for more details on subject.
@@ -79,9 +140,45 @@ public class LiepajasAfisa extends ExpandableListActivity implements OnDateSetLi
      */
     private LiepajasAfisaListAdapter adapter = null;
 
+    /**
+     * Incremented on every refresh. Results of older refreshes are ignored so a slow
+     * response can not replace events of the date selected later.
+     */
+    private int generation = 0;
+
+    /**
+     * Request of the date currently being loaded, cancelled when another date is selected.
+     */
+    private ContentLoaderPool.Request currentRequest = null;
+
+    /**
+     * Day key ({@link ContentLoader#getDayKey()}) of the selected date and of the events
+     * currently in the list. Used to keep the list when the same day is refreshed.
+     */
+    private long requestedDayKey = -1;
+    private long shownDayKey = -1;
+
+    /**
+     * Complete events of {@link #shownDayKey}, null while only some categories are shown.
+     */
+    private DaySnapshot shownSnapshot = null;
+
+    /**
+     * Time ({@link SystemClock#uptimeMillis()}) when the activity was created and whether
+     * the first rows were already shown, used to log startup time to first row.
+     */
+    private long createdAt;
+    private boolean firstRowReported = false;
+
+    /**
+     * Progress dialog of {@link #currentRequest}.
+     */
+    private ProgressDialog progressDialog = null;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        createdAt = SystemClock.uptimeMillis();
         LayoutInflater inflater = getLayoutInflater();
 
         eventList = getExpandableListView();
@@ -91,10 +188,327 @@ public class LiepajasAfisa extends ExpandableListActivity implements OnDateSetLi
         // enable click event on date button (in main_header)
         handleDateButtonClick();
 
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         adapter = new LiepajasAfisaListAdapter(this);
+        adapter.setTimeline(preferences.getBoolean("timeline", false));
         setListAdapter(adapter);
 
-        handleContentRefresh();
+        SyncService.schedule(this);
+
+        // stale while revalidate: show last known events and refresh without the dialog
+        if (preferences.getBoolean("stale_startup", true)) {
+            showStoredEvents();
+        } else {
+            handleContentRefresh(false, false);
+        }
+    }
+
+    /**
+     * Binds the most recent stored events of {@link #calendar} regardless of their age
+     * and refreshes them without the dialog. Only memory is checked on UI thread, the
+     * day is read from disk on the loader pool. The dialog is shown if nothing is stored.
+     */
+    private void showStoredEvents() {
+        final long dayKey = ContentLoader.getDayKey(calendar);
+        final EventCache cache = getEventCache(this);
+        EventCache.Entry entry = cache.peekEntry(dayKey);
+        if (entry != null) {
+            bindSnapshot(dayKey, entry.snapshot,
+                LiepajasAfisaListAdapter.prepare(entry.snapshot, adapter.getGroups(),
+                adapter.isTimeline()));
+            reportFirstRow("stored");
+            handleContentRefresh(false, true);
+            return;
+        }
+
+        final int requestGeneration = ++generation;
+        final List<LiepajasAfisaListAdapter.Group> previous = adapter.getGroups();
+        final boolean timeline = adapter.isTimeline();
+        getLoaderPool(this).submit(new Runnable() {
+            @Override
+            public void run() {
+                final EventCache.Entry stored = cache.getEntry(dayKey);
+                final List<LiepajasAfisaListAdapter.Group> groups = stored == null
+                    ? null : LiepajasAfisaListAdapter.prepare(stored.snapshot, previous, timeline);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (requestGeneration != generation) {
+                            return;
+                        }
+                        boolean shown = groups != null && timeline == adapter.isTimeline();
+                        if (shown) {
+                            bindSnapshot(dayKey, stored.snapshot, groups);
+                            reportFirstRow("stored");
+                        }
+                        handleContentRefresh(false, shown);
+                    }
+                });
+            }
+        }, ContentLoaderPool.PRIORITY_CURRENT);
+    }
+
+    /**
+     * Shows groups prepared from the complete snapshot of the day.
+     *
+     * @param dayKey day of the snapshot
+     * @param snapshot events of the day, kept for {@link #toggleTimeline()}
+     * @param groups groups prepared from the snapshot
+     */
+    private void bindSnapshot(long dayKey, DaySnapshot snapshot,
+            List<LiepajasAfisaListAdapter.Group> groups) {
+        shownDayKey = dayKey;
+        shownSnapshot = snapshot;
+        if (adapter.setGroups(groups)) {
+            adapter.notifyDataSetChanged();
+            showCurrentTime();
+        }
+    }
+
+    /**
+     * Switches between events grouped by category and by hour, the mode is remembered
+     * in preferences (<i>timeline</i>). Shown events are regrouped without loading.
+     */
+    private void toggleTimeline() {
+        boolean timeline = !adapter.isTimeline();
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+            .putBoolean("timeline", timeline).commit();
+        adapter.setTimeline(timeline);
+
+        if (shownSnapshot != null) {
+            adapter.setSnapshot(shownSnapshot);
+            adapter.notifyDataSetChanged();
+            showCurrentTime();
+        }
+    }
+
+    /**
+     * When today is shown as timeline expands hours within the next
+     * {@link #UPCOMING_MINUTES} and scrolls to the current hour.
+     */
+    private void showCurrentTime() {
+        Calendar now = Calendar.getInstance();
+        if (!adapter.isTimeline() || shownDayKey != ContentLoader.getDayKey(now)) {
+            return;
+        }
+        int minutes = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+        int first = adapter.findGroup(minutes);
+        if (first < 0) {
+            return;
+        }
+        List<LiepajasAfisaListAdapter.Group> groups = adapter.getGroups();
+        for (int i = first; i < groups.size(); i++) {
+            int start = groups.get(i).minutes;
+            if (start < 0 || start >= minutes + UPCOMING_MINUTES) {
+                break;
+            }
+            eventList.expandGroup(i);
+        }
+        eventList.setSelectedGroup(first);
+    }
+
+    /**
+     * Logs time from {@link #onCreate(Bundle)} to the moment first rows are bound.
+     *
+     * @param source where the rows came from
+     */
+    private void reportFirstRow(String source) {
+        if (!firstRowReported && adapter.getGroupCount() > 0) {
+            firstRowReported = true;
+            Log.i(TAG, "Time to first row " + (SystemClock.uptimeMillis() - createdAt)
+                + " ms (" + source + ")");
+        }
+    }
+
+    /**
+     * Returns application wide {@link EventCache} creating it on first use. Size and
+     * time to live are read from preferences (<i>cache_size</i>, <i>cache_ttl</i> in minutes).
+     *
+     * @param context context used to locate cache directory and preferences
+     * @return event cache
+     */
+    static synchronized EventCache getEventCache(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        long ttl = parseInt(preferences.getString("cache_ttl", "60"), 60) * 60 * 1000L;
+
+        if (eventCache == null) {
+            int size = parseInt(preferences.getString("cache_size", "14"), 14);
+            eventCache = new EventCache(
+                new File(context.getCacheDir(), "events"), Math.max(size, 1), ttl);
+            // counts follow every stored day so the month view does not read whole days
+            monthIndex = new MonthIndex(new File(context.getCacheDir(), "months"));
+            eventCache.addListener(monthIndex);
+        } else {
+            eventCache.setTtl(ttl);
+        }
+        return eventCache;
+    }
+
+    /**
+     * Returns application wide {@link SearchIndex} that follows {@link EventCache}. Days
+     * stored before the index was created are added by {@link SearchIndex#addStored(EventCache)}.
+     *
+     * @param context context used to locate the cache
+     * @return search index
+     */
+    static synchronized SearchIndex getSearchIndex(Context context) {
+        if (searchIndex == null) {
+            searchIndex = new SearchIndex();
+            getEventCache(context).addListener(searchIndex);
+        }
+        return searchIndex;
+    }
+
+    /**
+     * Returns application wide {@link MonthIndex} registered with {@link EventCache} when
+     * the cache is created. Counts are kept in <i>months</i> of the cache directory, days
+     * stored before are added per month by {@link MonthIndex#addStored(EventCache, int, int)}.
+     *
+     * @param context context used to create the cache
+     * @return month index
+     */
+    static synchronized MonthIndex getMonthIndex(Context context) {
+        getEventCache(context);
+        return monthIndex;
+    }
+
+    /**
+     * Returns application wide {@link ContentLoaderPool}. Number of threads and prefetch
+     * window are read from preferences (<i>prefetch_threads</i>, <i>prefetch_window</i>).
+     *
+     * @param context context used to read preferences
+     * @return loader pool
+     */
+    static synchronized ContentLoaderPool getLoaderPool(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        int threads = Math.max(1, parseInt(preferences.getString("prefetch_threads", "2"), 2));
+        int window = Math.max(0, parseInt(preferences.getString("prefetch_window", "3"), 3));
+
+        if (loaderPool == null) {
+            loaderPool = new ContentLoaderPool(threads, window);
+        } else {
+            loaderPool.configure(threads, window);
+        }
+        return loaderPool;
+    }
+
+    /**
+     * Creates loader for the given day configured from preferences.
+     *
+     * @param context context used to read preferences
+     * @param day day to load
+     * @param handler handler notified once loaded
+     * @return loader
+     */
+    static ContentLoader createLoader(Context context, Calendar day, ContentHandlerStatus handler) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        String site = preferences.getString("site_url",
+        "http://www.liepajniekiem.lv/lat/afisas-kalendars/");
+
+        ContentLoader loader = new ContentLoader(site, handler);
+        loader.setCalendar(day);
+        loader.setParser(ContentLoader.createParser(
+            preferences.getString("parser", "htmlcleaner"), getExtractionPlan(context)));
+        loader.setCache(getEventCache(context));
+        loader.setTransport(getTransport(context));
+        loader.setSources(getSources(context),
+            Math.max(1, parseInt(preferences.getString("source_deadline", "10"), 10)) * 1000L);
+        Metrics.setEnabled(preferences.getBoolean("metrics_enabled", false));
+        return loader;
+    }
+
+    /**
+     * Returns {@link ExtractionPlan} compiled from preferences (<i>extraction_plan</i>).
+     * The plan is compiled again only when the preference changes, invalid
+     * specification falls back to {@link ExtractionPlan#DEFAULT_SPEC}.
+     *
+     * @param context context used to read preferences
+     * @return extraction plan
+     */
+    static synchronized ExtractionPlan getExtractionPlan(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        String spec = preferences.getString("extraction_plan", ExtractionPlan.DEFAULT_SPEC);
+
+        if (extractionPlan == null || !spec.equals(extractionPlanSpec)) {
+            extractionPlan = ExtractionPlan.compileOrDefault(spec);
+            extractionPlanSpec = spec;
+            if (!extractionPlan.toString().equals(spec.trim())) {
+                Log.w(TAG, "Invalid extraction plan " + spec + ", using default");
+            }
+        }
+        return extractionPlan;
+    }
+
+    /**
+     * Returns additional {@link EventSource}s from preferences (<i>sources</i>), parsed
+     * again only when the preference changes. Invalid lines are skipped.
+     *
+     * @param context context used to read preferences
+     * @return sources, empty if only <i>site_url</i> is used
+     */
+    static synchronized List<EventSource> getSources(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        String parser = preferences.getString("parser", "htmlcleaner");
+        String spec = parser + "\n" + preferences.getString("sources", "");
+
+        if (sources == null || !spec.equals(sourcesSpec)) {
+            List<EventSource> parsed = new ArrayList<EventSource>();
+            for (String line : preferences.getString("sources", "").split("\n")) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                try {
+                    parsed.add(EventSource.parse(line, parser));
+                } catch (IllegalArgumentException ex) {
+                    Log.w(TAG, "Invalid source " + line + ": " + ex.getMessage());
+                }
+            }
+            sources = parsed;
+            sourcesSpec = spec;
+        }
+        return sources;
+    }
+
+    /**
+     * Returns shared {@link HttpTransport} configured from preferences (<i>connect_timeout</i>,
+     * <i>read_timeout</i> in seconds and <i>network_retries</i>).
+     *
+     * @param context context used to read preferences
+     * @return transport
+     */
+    static HttpTransport getTransport(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        int connectTimeout = Math.max(1, parseInt(preferences.getString("connect_timeout", "15"), 15));
+        int readTimeout = Math.max(1, parseInt(preferences.getString("read_timeout", "30"), 30));
+        int retries = Math.max(0, parseInt(preferences.getString("network_retries", "2"), 2));
+
+        HttpTransport transport = ContentLoader.getDefaultTransport();
+        transport.configure(connectTimeout * 1000, readTimeout * 1000, retries, 500);
+        return transport;
+    }
+
+    /**
+     * Preferences are stored as text, fall back to default when value can not be parsed.
+     */
+    static int parseInt(String value, int defaultValue) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        } catch (NullPointerException ex) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param errorCode code passed to {@link ContentHandlerStatus#onError(int, String)}
+     * @return string resource describing the error
+     */
+    static int getErrorResource(int errorCode) {
+        if (errorCode == ContentHandlerStatus.ERROR_EMPTY) {
+            return R.string.error_nodes_empty;
+        }
+        return R.string.error_nodes_general;
     }
 
     /**
@@ -121,59 +535,195 @@ public class LiepajasAfisa extends ExpandableListActivity implements OnDateSetLi
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
         case R.id.refresh:
-            handleContentRefresh();
+            handleContentRefresh(true, false);
             return true;
         case R.id.settings:
             startActivity(new Intent(LiepajasAfisa.this, LiepajasAfisaPreferences.class));
             return true;
+        case R.id.timeline:
+            toggleTimeline();
+            return true;
+        case R.id.search:
+            startActivity(new Intent(LiepajasAfisa.this, SearchActivity.class));
+            return true;
+        case R.id.month:
+            Intent intent = new Intent(LiepajasAfisa.this, MonthActivity.class);
+            intent.putExtra(MonthActivity.EXTRA_DAY_KEY, ContentLoader.getDayKey(calendar));
+            startActivityForResult(intent, REQUEST_MONTH);
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Shows the day selected in {@link MonthActivity}.
+     */
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_MONTH && resultCode == RESULT_OK && data != null) {
+            Calendar day = ContentLoader.getDay(data.getLongExtra(MonthActivity.EXTRA_DAY_KEY,
+                ContentLoader.getDayKey(calendar)));
+            calendar.set(day.get(Calendar.YEAR), day.get(Calendar.MONTH),
+                day.get(Calendar.DAY_OF_MONTH));
+            handleContentRefresh(false, false);
+        }
+    }
+
     /**
      * Refresh current event list by making a connection to web site
      * and extracting relevant information.
      * <p>
      * {@link #eventList} is automatically updated once finished loading.
+     *
+     * @param forceRefresh when true cached events are ignored
+     * @param background when true no progress dialog is shown and errors are only logged,
+     *                   used when stored events are already displayed
      */
-    private void handleContentRefresh() {
-        final ProgressDialog progressDialog = new ProgressDialog(this);
+    private void handleContentRefresh(boolean forceRefresh, final boolean background) {
+        cancelCurrentRequest();
+        final int requestGeneration = ++generation;
 
         Button button = (Button) findViewById(R.id.date);
 
         DateFormat format = DateFormat.getDateInstance(DateFormat.SHORT);
         button.setText(format.format(calendar.getTime()));
 
-        progressDialog.setCancelable(false);
-        progressDialog.setMessage(
-                getString(R.string.refresh_loading));
-        progressDialog.show();
+        // complete events of the day already on screen, changes are shown against them
+        final DaySnapshot shownBefore =
+            shownDayKey == ContentLoader.getDayKey(calendar) ? shownSnapshot : null;
+        ContentLoader runnable = createLoader(this, calendar, new LoadHandler() {
+            /**
+             * Set once the first category is shown, accessed only on UI thread.
+             */
+            private boolean partial = false;
 
-        // retrieve URL used to make the connection
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
-        String site = preferences.getString("site_url",
-        "http://www.liepajniekiem.lv/lat/afisas-kalendars/");
+            /**
+             * Difference reported right before {@link #onComplete(Map)}.
+             */
+            private DayDelta delta;
+
+            /**
+             * Loader that ran, another request's loader when the load was coalesced.
+             */
+            private ContentLoader completed;
 
-        ContentLoader runnable = new ContentLoader(site, new ContentHandlerStatus() {
             @Override
-            public void onComplete(Map<String, List<Event>> events) {
-                progressDialog.dismiss();
-                adapter.setEvents(events);
+            public void onReport(ContentLoader loader) {
+                completed = loader;
+            }
+
+            @Override
+            public void onDelta(DayDelta delta) {
+                if (delta.hasChanges()) {
+                    Log.d(TAG, "Changes since stored: " + delta);
+                }
+                this.delta = delta;
+            }
+
+            @Override
+            public void onCategory(String category, List<Event> events, final long elapsed) {
+                if (adapter.isTimeline()) {
+                    // hours can only be built once all categories are known
+                    return;
+                }
+                final LiepajasAfisaListAdapter.Group group =
+                    new LiepajasAfisaListAdapter.Group(category, events);
                 handler.post(new Runnable() {
                     @Override
                     public void run() {
-                        eventList.invalidate();
+                        if (requestGeneration != generation) {
+                            return;
+                        }
+                        if (!partial) {
+                            // first content is available, list replaces the dialog
+                            partial = true;
+                            Log.d(TAG, "First category after " + elapsed + " ms");
+                            if (progressDialog != null) {
+                                progressDialog.dismiss();
+                                progressDialog = null;
+                            }
+                            if (shownDayKey != requestedDayKey) {
+                                adapter.setEvents(new LinkedHashMap<String, List<Event>>());
+                                shownDayKey = requestedDayKey;
+                            }
+                            shownSnapshot = null;
+                        }
+                        adapter.setGroup(group);
                         adapter.notifyDataSetChanged();
+                        reportFirstRow("network");
+                    }
+                });
+            }
+
+            @Override
+            public void onComplete(Map<String, List<Event>> events) {
+                ContentLoader loader = completed;
+                if (loader != null) {
+                    if (loader.getBytesReceived() > 0) {
+                        Log.d(TAG, "Received " + loader.getBytesReceived() + " bytes, decoded "
+                            + loader.getBytesDecoded() + " bytes");
+                    }
+                    for (ContentLoader.SourceResult source : loader.getSourceResults()) {
+                        Log.d(TAG, "Source " + source);
+                    }
+                }
+
+                // highlight changes against the events on screen, the stored version the
+                // delta was computed against can be newer when another load stored the day
+                DayDelta changes = this.delta;
+                final DaySnapshot snapshot =
+                    changes == null ? DaySnapshot.fromMap(events) : changes.getCurrent();
+                if (shownBefore != null && shownBefore != snapshot
+                        && (changes == null || changes.getPrevious() != shownBefore)) {
+                    changes = DayDelta.compute(shownBefore, snapshot);
+                }
+
+                // HTML to text conversion is done here not to block UI thread, text of
+                // unchanged events is reused
+                final boolean timeline = adapter.isTimeline();
+                final List<LiepajasAfisaListAdapter.Group> groups = changes == null
+                    ? LiepajasAfisaListAdapter.prepare(snapshot, adapter.getGroups(), timeline)
+                    : LiepajasAfisaListAdapter.prepare(changes, adapter.getGroups(), timeline);
+                final LoadMetrics metrics = loader != null ? loader.getMetrics() : null;
+                final long posted = System.nanoTime();
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (requestGeneration != generation) {
+                            return;
+                        }
+                        finishCurrentRequest();
+                        shownDayKey = requestedDayKey;
+                        shownSnapshot = snapshot;
+                        // timeline toggled while preparing, regroup the complete day
+                        boolean changed = timeline == adapter.isTimeline()
+                            ? adapter.setGroups(groups) : adapter.setSnapshot(snapshot);
+                        if (changed) {
+                            adapter.notifyDataSetChanged();
+                            showCurrentTime();
+                        }
+                        if (metrics != null) {
+                            metrics.set(LoadMetrics.BIND, System.nanoTime() - posted);
+                        }
+                        reportFirstRow("network");
                     }
                 });
             }
             @Override
             public void onError(final int errorCode, final String message) {
-                progressDialog.dismiss();
                 handler.post(new Runnable() {
                     @Override
                     public void run() {
-                        String errorMessage = getString(errorCode);
+                        if (requestGeneration != generation) {
+                            return;
+                        }
+                        finishCurrentRequest();
+                        if (background) {
+                            Log.w(TAG, "Background refresh failed: " + message);
+                            return;
+                        }
+                        String errorMessage = getString(getErrorResource(errorCode));
                         if (message != null) {
                             errorMessage += ":" + message;
                         }
@@ -182,10 +732,93 @@ public class LiepajasAfisa extends ExpandableListActivity implements OnDateSetLi
                 });
             }
         });
-        runnable.setCalendar(calendar);
+        runnable.setForceRefresh(forceRefresh);
+        requestedDayKey = runnable.getDayKey();
 
-        Thread thread = new Thread(runnable);
-        thread.start();
+        ContentLoaderPool pool = getLoaderPool(this);
+        List<ContentLoader> loaders = new ArrayList<ContentLoader>();
+        addPrefetchLoaders(loaders, pool.getPrefetchWindow());
+
+        // day already in memory, no need for the progress dialog, only prefetch neighbours
+        DaySnapshot cached = forceRefresh
+            ? null : getEventCache(this).peek(runnable.getDayKey());
+        if (cached != null) {
+            shownDayKey = requestedDayKey;
+            shownSnapshot = cached;
+            if (adapter.setSnapshot(cached)) {
+                adapter.notifyDataSetChanged();
+                showCurrentTime();
+            }
+            reportFirstRow("memory");
+            pool.prefetch(loaders);
+            return;
+        }
+
+        if (background) {
+            currentRequest = pool.execute(runnable, ContentLoaderPool.PRIORITY_CURRENT);
+            pool.prefetch(loaders);
+            return;
+        }
+
+        progressDialog = new ProgressDialog(this);
+        progressDialog.setCancelable(true);
+        progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                // dialog is already going away, only the load needs to be stopped
+                progressDialog = null;
+                generation++;
+                cancelCurrentRequest();
+            }
+        });
+        progressDialog.setMessage(
+                getString(R.string.refresh_loading));
+        progressDialog.show();
+
+        currentRequest = pool.execute(runnable, ContentLoaderPool.PRIORITY_CURRENT);
+        pool.prefetch(loaders);
+    }
+
+    /**
+     * Cancels the load of previously selected date, dismissing its progress dialog.
+     */
+    private void cancelCurrentRequest() {
+        if (currentRequest != null) {
+            currentRequest.cancel();
+        }
+        finishCurrentRequest();
+    }
+
+    private void finishCurrentRequest() {
+        currentRequest = null;
+        if (progressDialog != null) {
+            progressDialog.dismiss();
+            progressDialog = null;
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        generation++;
+        cancelCurrentRequest();
+        super.onDestroy();
+    }
+
+    /**
+     * Adds loaders for days following the selected date and then preceding it so
+     * that switching to adjacent day is served from {@link EventCache}.
+     *
+     * @param loaders list where loaders are added
+     * @param window number of days on each side
+     */
+    private void addPrefetchLoaders(List<ContentLoader> loaders, int window) {
+        for (int direction = 1; direction >= -1; direction -= 2) {
+            for (int offset = 1; offset <= window; offset++) {
+                Calendar day = (Calendar) calendar.clone();
+                day.add(Calendar.DATE, direction * offset);
+                loaders.add(createLoader(this, day, ContentLoaderPool.IGNORE));
+            }
+        }
     }
 
     /**
@@ -234,6 +867,6 @@ public class LiepajasAfisa extends ExpandableListActivity implements OnDateSetLi
     @Override
     public void onDateSet(DatePicker view, int year, int monthOfYear, int dayOfMonth) {
         calendar.set(year, monthOfYear, dayOfMonth);
-        handleContentRefresh();
+        handleContentRefresh(false, false);
     }
 }
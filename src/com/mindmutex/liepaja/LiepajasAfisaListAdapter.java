@@ -22,11 +22,17 @@
 package com.mindmutex.liepaja;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import android.content.Context;
+import android.graphics.Typeface;
 import android.text.Html;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -40,18 +46,172 @@ import android.widget.TextView;
 /**
  * Adapter that would accept the propriety format of categories and events and transform
  * in valid data source fed in {@link ExpandableListView}. Also includes custom UI.
+ * <p>
+ * Text shown in rows is converted from HTML once when events are provided, views are
+ * recycled so scrolling does not allocate.
  */
 public class LiepajasAfisaListAdapter extends BaseExpandableListAdapter {
+
     /**
-     * Available categories that are set when new data set of events
-     * is provided. Separate because requires index not existing value in map (the string).
+     * Category of a {@link DaySnapshot}, or an hour of its {@link Timeline}, with text
+     * prepared for display.
      */
-    private List<String> categories = new ArrayList<String>();
+    static class Group {
+        final DaySnapshot snapshot;
+
+        /**
+         * Positions of the events in {@link #snapshot}.
+         */
+        final int[] positions;
+
+        /**
+         * Name of the category or the hour shown as group title.
+         */
+        final String category;
+
+        /**
+         * Start of the hour in minutes for timeline groups, -1 for categories and
+         * events without time.
+         */
+        final int minutes;
+
+        final long id;
+
+        /**
+         * Identifier of each event derived from its content, unique within the group.
+         */
+        final long[] ids;
+
+        final CharSequence[] descriptions;
+
+        final CharSequence[] names;
+
+        /**
+         * Children added or changed since the day was stored before, null if none.
+         */
+        BitSet fresh;
+
+        Group(String category, List<Event> events) {
+            this(DaySnapshot.fromMap(Collections.singletonMap(category, events)), 0, null);
+        }
+
+        /**
+         * @param snapshot events of the day
+         * @param group index of the category in snapshot
+         * @param previous group with the same category from previous data set, text of
+         *                 events that did not change is reused, can be null
+         */
+        Group(DaySnapshot snapshot, int group, Group previous) {
+            this(snapshot, snapshot.getCategory(group), -1,
+                range(snapshot.getStart(group), snapshot.getEnd(group)), previous);
+        }
+
+        /**
+         * @param snapshot events of the day
+         * @param title group title
+         * @param minutes start of the hour for timeline groups or -1
+         * @param positions positions of events in snapshot
+         * @param previous group with the same title from previous data set, can be null
+         */
+        Group(DaySnapshot snapshot, String title, int minutes, int[] positions, Group previous) {
+            this.snapshot = snapshot;
+            this.positions = positions;
+            this.category = title;
+            this.minutes = minutes;
+            this.id = Event.hash(Event.HASH_SEED, category);
+
+            int count = positions.length;
+            this.ids = new long[count];
+            this.descriptions = new CharSequence[count];
+            this.names = new CharSequence[count];
+
+            Map<Long, Integer> previousPositions = null;
+            if (previous != null) {
+                previousPositions = new HashMap<Long, Integer>(previous.ids.length * 2);
+                for (int i = 0; i < previous.ids.length; i++) {
+                    previousPositions.put(previous.ids[i], i);
+                }
+            }
+
+            Set<Long> used = new HashSet<Long>(count * 2);
+            for (int i = 0; i < count; i++) {
+                int position = positions[i];
+
+                // identical events in the same category get distinct identifiers
+                long eventId = snapshot.contentHash(position);
+                while (!used.add(eventId)) {
+                    eventId = eventId * 31 + 1;
+                }
+                ids[i] = eventId;
+
+                Integer previousPosition = previousPositions == null
+                    ? null : previousPositions.get(eventId);
+                if (previousPosition != null) {
+                    descriptions[i] = previous.descriptions[previousPosition];
+                    names[i] = previous.names[previousPosition];
+                    continue;
+                }
+
+                String nameAndTime = snapshot.getLocation(position);
+                String timestamp = snapshot.getTimestamp(position);
+                if (timestamp.length() > 0) {
+                    nameAndTime += " @ " + timestamp;
+                }
+                if (minutes >= 0 || title.equals(UNKNOWN_TIME)) {
+                    // events of all categories are mixed in the timeline
+                    nameAndTime += " (" + snapshot.getCategory(snapshot.getGroup(position)) + ")";
+                }
+                descriptions[i] = Html.fromHtml(snapshot.getDescription(position));
+                names[i] = Html.fromHtml(nameAndTime);
+            }
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        private static int[] range(int start, int end) {
+            int[] positions = new int[end - start];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = start + i;
+            }
+            return positions;
+        }
+
+        /**
+         * @return true if both groups have the same category and events in the same order
+         */
+        boolean isSame(Group another) {
+            return id == another.id && category.equals(another.category)
+                && Arrays.equals(ids, another.ids);
+        }
+    }
+
+    /**
+     * Title of the timeline group with events whose time is not known.
+     */
+    static final String UNKNOWN_TIME = "--:--";
+
+    /**
+     * Holds views of a child row so {@link View#findViewById(int)} is called only
+     * when the row is inflated.
+     */
+    private static class ViewHolder {
+        TextView description;
+
+        TextView name;
+    }
+
+    /**
+     * Categories in the order provided. Separate list because access requires index.
+     * The list is never modified once assigned so it can be read from other threads.
+     */
+    private volatile List<Group> groups = new ArrayList<Group>();
 
     /**
-     * Categories and events provided to adapter.
+     * When set events are grouped by hour instead of category.
      */
-    private Map<String, List<Event>> events = new LinkedHashMap<String, List<Event>>();
+    private volatile boolean timeline = false;
 
     /**
      * Context required to obtain instance of {@link LayoutInflater}. In most cases context
@@ -71,70 +231,271 @@ public class LiepajasAfisaListAdapter extends BaseExpandableListAdapter {
         this.context = context;
     }
 
-    public void setEvents(Map<String, List<Event>> events) {
-        this.categories =
-            new ArrayList<String>(events.keySet());
-        this.events = events;
+    /**
+     * Converts events into groups with text ready for display. Does not touch adapter
+     * state so can be called from background thread, see {@link #setGroups(List)}.
+     *
+     * @param snapshot events of the day
+     * @param previous groups currently shown, text of unchanged events is reused
+     * @return prepared groups
+     */
+    static List<Group> prepareGroups(DaySnapshot snapshot, List<Group> previous) {
+        Map<String, Group> previousGroups = new HashMap<String, Group>();
+        for (Group group : previous) {
+            previousGroups.put(group.category, group);
+        }
+
+        List<Group> groups = new ArrayList<Group>(snapshot.getCategoryCount());
+        for (int group = 0; group < snapshot.getCategoryCount(); group++) {
+            groups.add(new Group(snapshot, group,
+                previousGroups.get(snapshot.getCategory(group))));
+        }
+        return groups;
+    }
+
+    /**
+     * Groups events by start hour in time order, events without time are last.
+     * Does not touch adapter state, see {@link #prepareGroups(DaySnapshot, List)}.
+     *
+     * @param snapshot events of the day
+     * @param previous groups currently shown, text of unchanged events is reused
+     * @return prepared groups
+     */
+    static List<Group> prepareTimeline(DaySnapshot snapshot, List<Group> previous) {
+        Map<String, Group> previousGroups = new HashMap<String, Group>();
+        for (Group group : previous) {
+            previousGroups.put(group.category, group);
+        }
+
+        Timeline timeline = Timeline.create(snapshot);
+        List<Group> groups = new ArrayList<Group>();
+        int start = 0;
+        while (start < timeline.getTimedCount()) {
+            int hour = timeline.getMinutes(start) / 60;
+            int end = timeline.indexOf((hour + 1) * 60);
+            String title = String.format("%02d:00", hour);
+            groups.add(new Group(snapshot, title, hour * 60,
+                timeline.getPositions(start, end), previousGroups.get(title)));
+            start = end;
+        }
+        if (start < timeline.size()) {
+            groups.add(new Group(snapshot, UNKNOWN_TIME, -1,
+                timeline.getPositions(start, timeline.size()), previousGroups.get(UNKNOWN_TIME)));
+        }
+        return groups;
+    }
+
+    /**
+     * Prepares groups in the mode given.
+     *
+     * @param timeline true for {@link #prepareTimeline(DaySnapshot, List)}
+     */
+    static List<Group> prepare(DaySnapshot snapshot, List<Group> previous, boolean timeline) {
+        return timeline
+            ? prepareTimeline(snapshot, previous) : prepareGroups(snapshot, previous);
+    }
+
+    /**
+     * Prepares groups of {@link DayDelta#getCurrent()} with new and changed events
+     * highlighted. Nothing is highlighted when the day was not stored before.
+     *
+     * @param delta difference against previously stored version
+     */
+    static List<Group> prepare(DayDelta delta, List<Group> previous, boolean timeline) {
+        List<Group> groups = prepare(delta.getCurrent(), previous, timeline);
+        if (delta.getPrevious() != null && delta.hasChanges()) {
+            for (Group group : groups) {
+                for (int i = 0; i < group.positions.length; i++) {
+                    if (delta.isFresh(group.positions[i])) {
+                        if (group.fresh == null) {
+                            group.fresh = new BitSet(group.positions.length);
+                        }
+                        group.fresh.set(i);
+                    }
+                }
+            }
+        }
+        return groups;
+    }
+
+    public boolean isTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Switches between grouping by category and by hour, takes effect with the next
+     * {@link #setSnapshot(DaySnapshot)}.
+     *
+     * @param timeline true to group by hour
+     */
+    public void setTimeline(boolean timeline) {
+        this.timeline = timeline;
+    }
+
+    /**
+     * Finds timeline group containing the time or the first group after it.
+     *
+     * @param minutes minutes since midnight
+     * @return group position or -1 if not showing timeline or nothing starts that late
+     */
+    public int findGroup(int minutes) {
+        List<Group> current = groups;
+        int low = 0;
+        int high = current.size();
+        // events without time are the last group and are never found
+        while (high > 0 && current.get(high - 1).minutes < 0) {
+            high--;
+        }
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (current.get(middle).minutes + 60 <= minutes) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low < current.size() && current.get(low).minutes >= 0 ? low : -1;
+    }
+
+    /**
+     * @return groups currently shown, see {@link #prepareGroups(DaySnapshot, List)}
+     */
+    List<Group> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Replaces the events.
+     *
+     * @param events categories and events
+     * @return true if data set changed and views need to be updated
+     */
+    public boolean setEvents(Map<String, List<Event>> events) {
+        return setSnapshot(DaySnapshot.fromMap(events));
+    }
+
+    /**
+     * Replaces the events reading them directly from the snapshot.
+     *
+     * @param snapshot events of the day
+     * @return true if data set changed and views need to be updated
+     */
+    public boolean setSnapshot(DaySnapshot snapshot) {
+        return setGroups(prepare(snapshot, groups, timeline));
+    }
+
+    /**
+     * Replaces groups, comparing them with groups currently shown.
+     *
+     * @param newGroups groups created by {@link #prepareGroups(DaySnapshot, List)}
+     * @return true if data set changed and views need to be updated
+     */
+    boolean setGroups(List<Group> newGroups) {
+        List<Group> oldGroups = groups;
+        groups = newGroups;
+
+        if (oldGroups.size() != newGroups.size()) {
+            return true;
+        }
+        for (int i = 0; i < newGroups.size(); i++) {
+            if (!oldGroups.get(i).isSame(newGroups.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds or replaces events of a single category, used to show categories while
+     * the rest of the page is still being extracted.
+     *
+     * @param category name of the category
+     * @param categoryEvents events of the category
+     */
+    public void setCategory(String category, List<Event> categoryEvents) {
+        setGroup(new Group(category, categoryEvents));
+    }
+
+    void setGroup(Group group) {
+        List<Group> newGroups = new ArrayList<Group>(groups);
+        for (int i = 0; i < newGroups.size(); i++) {
+            if (newGroups.get(i).category.equals(group.category)) {
+                newGroups.set(i, group);
+                groups = newGroups;
+                return;
+            }
+        }
+        newGroups.add(group);
+        groups = newGroups;
     }
 
     @Override
     public Object getChild(int groupPosition, int childPosition) {
-        return events.get(categories.get(groupPosition)).get(childPosition);
+        Group group = groups.get(groupPosition);
+        return group.snapshot.getEvent(group.positions[childPosition]);
     }
 
     @Override
     public long getChildId(int groupPosition, int childPosition) {
-        return 0;
+        return groups.get(groupPosition).ids[childPosition];
     }
 
     @Override
     public View getChildView(int groupPosition,
             int childPosition, boolean isLastChild, View convertView, ViewGroup parent) {
 
-        View entry = inflater.inflate(R.layout.main, null);
-
-        Event event = (Event) getChild(groupPosition, childPosition);
-        String nameAndTime = event.location;
-        if (event.timestamp != null && event.timestamp.length() > 0) {
-            nameAndTime += String.format(" @ %s", event.timestamp);
+        View entry = convertView;
+        ViewHolder holder;
+        if (entry == null) {
+            entry = inflater.inflate(R.layout.main, null);
+            holder = new ViewHolder();
+            holder.description = (TextView) entry.findViewById(R.id.description);
+            holder.name = (TextView) entry.findViewById(R.id.name);
+            entry.setTag(holder);
+        } else {
+            holder = (ViewHolder) entry.getTag();
         }
 
-        ((TextView) entry.findViewById(R.id.description)).setText(Html.fromHtml(event.description));
-        ((TextView) entry.findViewById(R.id.name)).setText(Html.fromHtml(nameAndTime));
+        Group group = groups.get(groupPosition);
+        holder.description.setText(group.descriptions[childPosition]);
+        holder.name.setText(group.names[childPosition]);
+        holder.name.setTypeface(group.fresh != null && group.fresh.get(childPosition)
+            ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
 
         return entry;
     }
 
     @Override
     public int getChildrenCount(int groupPosition) {
-        return events.get(categories.get(groupPosition)).size();
+        return groups.get(groupPosition).size();
     }
 
     @Override
     public Object getGroup(int groupPosition) {
-        return categories.get(groupPosition);
+        return groups.get(groupPosition).category;
     }
 
     @Override
     public int getGroupCount() {
-        return categories.size();
+        return groups.size();
     }
 
     @Override
     public long getGroupId(int groupPosition) {
-        return 0;
+        return groups.get(groupPosition).id;
     }
 
     @Override
     public View getGroupView(int groupPosition, boolean isExpanded, View convertView, ViewGroup parent) {
-        TextView textView = getGenericView();
-        textView.setText(getGroup(groupPosition).toString());
+        TextView textView = convertView instanceof TextView
+            ? (TextView) convertView : getGenericView();
+        textView.setText(groups.get(groupPosition).category);
         return textView;
     }
 
     @Override
     public boolean hasStableIds() {
-        return false;
+        return true;
     }
 
     @Override
@@ -22,7 +22,9 @@
 package com.mindmutex.liepaja;
 
 import android.os.Bundle;
+import android.preference.Preference;
 import android.preference.PreferenceActivity;
+import android.preference.PreferenceManager;
 
 /**
  * Application preference screen.
@@ -32,5 +34,19 @@ public class LiepajasAfisaPreferences extends PreferenceActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         addPreferencesFromResource(R.xml.preference);
+
+        // show hit/miss/eviction counters to help tuning cache size
+        Preference statistics = findPreference("cache_stats");
+        statistics.setSummary(LiepajasAfisa.getEventCache(this).toString());
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        // apply changes of sync settings
+        SyncService.schedule(this);
+        Metrics.setEnabled(PreferenceManager.getDefaultSharedPreferences(this)
+            .getBoolean("metrics_enabled", false));
     }
 }
\ No newline at end of file
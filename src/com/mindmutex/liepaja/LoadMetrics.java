@@ -0,0 +1,294 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Timing of a single load split into stages, together with transferred bytes and
+ * extracted rows. Created by {@link ContentLoader} only while {@link Metrics} is
+ * enabled, otherwise all calls are no-ops.
+ * <p>
+ * The record is bound to the loading thread so code deeper in the pipeline (transport,
+ * parser) calls {@link #mark(int)} without the record being passed around. Each mark
+ * adds the time since the previous mark to the stage, excluding time spent waiting for
+ * the network which is counted as {@link #DOWNLOAD}.
+ */
+public final class LoadMetrics {
+
+    /**
+     * Opening the connection including retries.
+     */
+    public static final int CONNECT = 0;
+
+    /**
+     * Waiting for response headers after the request was sent.
+     */
+    public static final int FIRST_BYTE = 1;
+
+    /**
+     * Time blocked reading the response body.
+     */
+    public static final int DOWNLOAD = 2;
+
+    /**
+     * Building DOM, zero for parsers that do not build one.
+     */
+    public static final int CLEAN = 3;
+
+    /**
+     * Finding rows and creating events, including decompression and decoding.
+     */
+    public static final int EXTRACT = 4;
+
+    /**
+     * Reading and writing {@link EventCache}.
+     */
+    public static final int STORE = 5;
+
+    /**
+     * Handler processing on the loading thread, such as preparing list groups.
+     */
+    public static final int DELIVER = 6;
+
+    /**
+     * From handing groups to UI thread until the adapter was updated.
+     */
+    public static final int BIND = 7;
+
+    public static final int STAGE_COUNT = 8;
+
+    static final String[] STAGE_NAMES = {
+        "connect", "first_byte", "download", "clean", "extract", "store", "deliver", "bind"
+    };
+
+    public static final String SOURCE_NETWORK = "network";
+    public static final String SOURCE_NOT_MODIFIED = "not_modified";
+    public static final String SOURCE_CACHE = "cache";
+
+    private static final ThreadLocal<LoadMetrics> CURRENT = new ThreadLocal<LoadMetrics>();
+
+    /**
+     * Day being loaded.
+     */
+    public final long dayKey;
+
+    /**
+     * Wall clock time in milliseconds when the load started.
+     */
+    public final long startedAt;
+
+    private final long startNanos;
+
+    /**
+     * Duration of each stage in nanoseconds, -1 if the stage did not happen.
+     */
+    private final long[] stages = new long[STAGE_COUNT];
+
+    private long lastMark;
+
+    /**
+     * Download time accumulated since the last mark, excluded from the next stage.
+     */
+    private long readSinceMark;
+
+    private long total = -1;
+
+    private String source = SOURCE_NETWORK;
+
+    private long bytesReceived;
+
+    private long bytesDecoded;
+
+    private int categories;
+
+    private int rows;
+
+    private String error;
+
+    private LoadMetrics(long dayKey) {
+        this.dayKey = dayKey;
+        this.startedAt = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        this.lastMark = startNanos;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            stages[i] = -1;
+        }
+    }
+
+    /**
+     * Starts measuring the load on the current thread.
+     *
+     * @param dayKey day being loaded
+     * @return record or null when metrics are disabled
+     */
+    public static LoadMetrics start(long dayKey) {
+        if (!Metrics.isEnabled()) {
+            return null;
+        }
+        LoadMetrics metrics = new LoadMetrics(dayKey);
+        CURRENT.set(metrics);
+        return metrics;
+    }
+
+    /**
+     * Ends the stage of the load running on the current thread, if any is measured.
+     *
+     * @param stage stage constant
+     */
+    public static void mark(int stage) {
+        if (!Metrics.isEnabled()) {
+            return;
+        }
+        LoadMetrics metrics = CURRENT.get();
+        if (metrics != null) {
+            metrics.markStage(stage);
+        }
+    }
+
+    private synchronized void markStage(int stage) {
+        long now = System.nanoTime();
+        add(stage, Math.max(0, now - lastMark - readSinceMark));
+        lastMark = now;
+        readSinceMark = 0;
+    }
+
+    private void add(int stage, long nanos) {
+        stages[stage] = Math.max(stages[stage], 0) + nanos;
+    }
+
+    /**
+     * Sets duration of the stage measured outside of the loading thread.
+     *
+     * @param stage stage constant
+     * @param nanos duration in nanoseconds
+     */
+    public synchronized void set(int stage, long nanos) {
+        stages[stage] = nanos;
+    }
+
+    /**
+     * @param in network stream
+     * @return stream adding time blocked in reads to {@link #DOWNLOAD}
+     */
+    public InputStream time(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return super.read();
+                } finally {
+                    addRead(System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return super.read(buffer, offset, length);
+                } finally {
+                    addRead(System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    private synchronized void addRead(long nanos) {
+        add(DOWNLOAD, nanos);
+        readSinceMark += nanos;
+    }
+
+    public synchronized void setSource(String source) {
+        this.source = source;
+    }
+
+    public synchronized void setBytes(long received, long decoded) {
+        this.bytesReceived = received;
+        this.bytesDecoded = decoded;
+    }
+
+    public synchronized void setRows(int categories, int rows) {
+        this.categories = categories;
+        this.rows = rows;
+    }
+
+    public synchronized void setError(String error) {
+        this.error = error;
+    }
+
+    /**
+     * Unbinds the record from the thread and adds it to {@link Metrics}.
+     */
+    public void finish() {
+        CURRENT.remove();
+        synchronized (this) {
+            total = System.nanoTime() - startNanos;
+        }
+        Metrics.record(this);
+    }
+
+    /**
+     * @param stage stage constant
+     * @return duration in nanoseconds or -1 if the stage did not happen
+     */
+    public synchronized long getStage(int stage) {
+        return stages[stage];
+    }
+
+    /**
+     * @return duration from start to {@link #finish()} in nanoseconds, without {@link #BIND}
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    public synchronized String getSource() {
+        return source;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public synchronized long getBytesDecoded() {
+        return bytesDecoded;
+    }
+
+    public synchronized int getCategories() {
+        return categories;
+    }
+
+    public synchronized int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return error message or null if the load succeeded
+     */
+    public synchronized String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps {@link LoadMetrics} of the most recent loads in a fixed size ring buffer and
+ * summarizes them. Disabled by default (<i>metrics_enabled</i> preference), when
+ * disabled loads only check a volatile flag.
+ */
+public final class Metrics {
+
+    /**
+     * Number of loads kept, older ones are overwritten.
+     */
+    public static final int CAPACITY = 200;
+
+    private static volatile boolean enabled = false;
+
+    private static final LoadMetrics[] records = new LoadMetrics[CAPACITY];
+
+    /**
+     * Index where the next record is written.
+     */
+    private static int next;
+
+    private static int count;
+
+    private Metrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    static synchronized void record(LoadMetrics metrics) {
+        records[next] = metrics;
+        next = (next + 1) % CAPACITY;
+        count = Math.min(count + 1, CAPACITY);
+    }
+
+    /**
+     * @return recorded loads, oldest first
+     */
+    public static synchronized List<LoadMetrics> getRecords() {
+        List<LoadMetrics> result = new ArrayList<LoadMetrics>(count);
+        int first = (next - count + CAPACITY) % CAPACITY;
+        for (int i = 0; i < count; i++) {
+            result.add(records[(first + i) % CAPACITY]);
+        }
+        return result;
+    }
+
+    public static synchronized void clear() {
+        Arrays.fill(records, null);
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * Nearest rank percentile of the stage over loads where the stage happened.
+     *
+     * @param records loads
+     * @param stage stage constant of {@link LoadMetrics}
+     * @param percentile value between 0 and 1
+     * @return duration in nanoseconds or -1 if no load has the stage
+     */
+    public static long percentile(List<LoadMetrics> records, int stage, double percentile) {
+        long[] values = new long[records.size()];
+        int size = 0;
+        for (LoadMetrics metrics : records) {
+            long value = metrics.getStage(stage);
+            if (value >= 0) {
+                values[size++] = value;
+            }
+        }
+        if (size == 0) {
+            return -1;
+        }
+        Arrays.sort(values, 0, size);
+        int index = (int) Math.ceil(percentile * size) - 1;
+        return values[Math.max(0, Math.min(index, size - 1))];
+    }
+
+    /**
+     * @return table of stage percentiles in milliseconds followed by totals
+     */
+    public static String summarize() {
+        List<LoadMetrics> loads = getRecords();
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-11s %5s %7s %7s %7s %7s\n",
+            "stage", "n", "p50", "p90", "p99", "max"));
+        for (int stage = 0; stage < LoadMetrics.STAGE_COUNT; stage++) {
+            int measured = 0;
+            for (LoadMetrics metrics : loads) {
+                if (metrics.getStage(stage) >= 0) {
+                    measured++;
+                }
+            }
+            text.append(String.format("%-11s %5d %7s %7s %7s %7s\n",
+                LoadMetrics.STAGE_NAMES[stage], measured,
+                millis(percentile(loads, stage, 0.5)), millis(percentile(loads, stage, 0.9)),
+                millis(percentile(loads, stage, 0.99)), millis(percentile(loads, stage, 1.0))));
+        }
+
+        int network = 0;
+        int notModified = 0;
+        int errors = 0;
+        long received = 0;
+        long decoded = 0;
+        long rows = 0;
+        for (LoadMetrics metrics : loads) {
+            if (metrics.getError() != null) {
+                errors++;
+            } else if (LoadMetrics.SOURCE_NETWORK.equals(metrics.getSource())) {
+                network++;
+            } else if (LoadMetrics.SOURCE_NOT_MODIFIED.equals(metrics.getSource())) {
+                notModified++;
+            }
+            received += metrics.getBytesReceived();
+            decoded += metrics.getBytesDecoded();
+            rows += metrics.getRows();
+        }
+        text.append(String.format("\nloads %d: network %d, not modified %d, cache %d, errors %d\n",
+            loads.size(), network, notModified, loads.size() - network - notModified - errors, errors));
+        text.append(String.format("bytes received %d, decoded %d, rows %d\n", received, decoded, rows));
+        return text.toString();
+    }
+
+    /**
+     * @return all recorded loads as comma separated values with header, times in microseconds
+     */
+    public static String export() {
+        StringBuilder text = new StringBuilder();
+        text.append("started,day,source");
+        for (String name : LoadMetrics.STAGE_NAMES) {
+            text.append(',').append(name);
+        }
+        text.append(",total,bytes_received,bytes_decoded,categories,rows,error\n");
+
+        for (LoadMetrics metrics : getRecords()) {
+            text.append(metrics.startedAt).append(',').append(metrics.dayKey).append(',')
+                .append(metrics.getSource());
+            for (int stage = 0; stage < LoadMetrics.STAGE_COUNT; stage++) {
+                long value = metrics.getStage(stage);
+                text.append(',');
+                if (value >= 0) {
+                    text.append(value / 1000);
+                }
+            }
+            text.append(',').append(metrics.getTotal() / 1000)
+                .append(',').append(metrics.getBytesReceived())
+                .append(',').append(metrics.getBytesDecoded())
+                .append(',').append(metrics.getCategories())
+                .append(',').append(metrics.getRows())
+                .append(',');
+            if (metrics.getError() != null) {
+                text.append('"').append(metrics.getError().replace("\"", "\"\"")).append('"');
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-" : String.format("%.1f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,423 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+
+import android.app.ListActivity;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Overview of a month with number of events per day and per category, built from
+ * {@link MonthIndex} without loading any day. Days near today that are not stored yet
+ * are loaded in the background by {@link ContentLoaderPool} and the view is updated as
+ * they arrive.
+ * Selecting a day returns its key in {@link #EXTRA_DAY_KEY}. Stored days of the month
+ * can be exported by {@link EventExporter} and shared.
+ */
+public class MonthActivity extends ListActivity implements View.OnClickListener {
+
+    private static final String TAG = "MonthActivity";
+
+    /**
+     * Key of the selected day in result intent.
+     */
+    public static final String EXTRA_DAY_KEY = "dayKey";
+
+    /**
+     * Number of categories listed for each day.
+     */
+    private static final int DAY_CATEGORIES = 3;
+
+    /**
+     * Directory on external storage exported files are written to.
+     */
+    private static final String EXPORT_DIRECTORY = "LiepajasAfisa";
+
+    /**
+     * Missing days are loaded only this many days before and after today.
+     */
+    private static final int FILL_WINDOW = 31;
+
+    private final Handler handler = new Handler();
+
+    private MonthIndex index;
+
+    private DayAdapter adapter;
+
+    private TextView title;
+
+    private TextView totals;
+
+    private int year;
+
+    private int month;
+
+    /**
+     * Incremented when another month is shown so late results of the previous one are
+     * ignored.
+     */
+    private int generation = 0;
+
+    /**
+     * Set when an update is already posted, loads finishing at once cause one update.
+     */
+    private boolean updatePosted = false;
+
+    /**
+     * Loads of missing days of the shown month, cancelled when another month is shown.
+     */
+    private List<ContentLoaderPool.Request> pending = new ArrayList<ContentLoaderPool.Request>();
+
+    private volatile boolean destroyed = false;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.month);
+
+        index = LiepajasAfisa.getMonthIndex(this);
+        adapter = new DayAdapter(this);
+        setListAdapter(adapter);
+
+        title = (TextView) findViewById(R.id.month);
+        totals = (TextView) findViewById(R.id.totals);
+        findViewById(R.id.previous).setOnClickListener(this);
+        findViewById(R.id.next).setOnClickListener(this);
+
+        Calendar day = ContentLoader.getDay(getIntent().getLongExtra(EXTRA_DAY_KEY,
+            ContentLoader.getDayKey(Calendar.getInstance())));
+        year = day.get(Calendar.YEAR);
+        month = day.get(Calendar.MONTH);
+        showMonth();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        destroyed = true;
+        cancelPending();
+    }
+
+    @Override
+    public void onClick(View view) {
+        month += view.getId() == R.id.next ? 1 : -1;
+        if (month < 0) {
+            month = 11;
+            year--;
+        } else if (month > 11) {
+            month = 0;
+            year++;
+        }
+        showMonth();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        getMenuInflater().inflate(R.menu.month, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+        case R.id.export_ics:
+            export(EventExporter.ICALENDAR);
+            return true;
+        case R.id.export_json:
+            export(EventExporter.JSON);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Writes stored days of the shown month to external storage in background and
+     * offers the file to other applications.
+     *
+     * @param format {@link EventExporter#ICALENDAR} or {@link EventExporter#JSON}
+     */
+    private void export(final String format) {
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            Toast.makeText(this, R.string.export_failed, Toast.LENGTH_LONG).show();
+            return;
+        }
+        final long[] dayKeys = MonthIndex.getDayKeys(year, month);
+        final File file = new File(new File(Environment.getExternalStorageDirectory(),
+            EXPORT_DIRECTORY), String.format("afisa-%04d-%02d.%s", year, month + 1, format));
+        final EventExporter exporter = new EventExporter(LiepajasAfisa.getEventCache(this));
+        LiepajasAfisa.getLoaderPool(this).submit(new Runnable() {
+            @Override
+            public void run() {
+                boolean written = false;
+                try {
+                    file.getParentFile().mkdirs();
+                    Writer out = new BufferedWriter(
+                        new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 16 * 1024);
+                    try {
+                        int count = exporter.export(dayKeys[0], dayKeys[dayKeys.length - 1],
+                            format, out);
+                        Log.d(TAG, "Exported " + count + " events to " + file);
+                        written = true;
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException ex) {
+                    Log.w(TAG, "Export to " + file + " failed: " + ex);
+                }
+                final boolean success = written;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (destroyed) {
+                            return;
+                        }
+                        if (!success) {
+                            Toast.makeText(MonthActivity.this, R.string.export_failed,
+                                Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        Intent send = new Intent(Intent.ACTION_SEND);
+                        send.setType(EventExporter.getContentType(format));
+                        send.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+                        startActivity(Intent.createChooser(send, getString(
+                            format.equals(EventExporter.ICALENDAR)
+                                ? R.string.export_ics : R.string.export_json)));
+                    }
+                });
+            }
+        }, ContentLoaderPool.PRIORITY_CURRENT);
+    }
+
+    @Override
+    protected void onListItemClick(ListView list, View view, int position, long id) {
+        setResult(RESULT_OK, new Intent().putExtra(EXTRA_DAY_KEY, id));
+        finish();
+    }
+
+    /**
+     * Shows indexed counts at once, then indexes stored days of the month and loads the
+     * days still missing. Loads of the previously shown month are cancelled.
+     */
+    private void showMonth() {
+        final int showGeneration = ++generation;
+        final int showYear = year;
+        final int showMonth = month;
+        cancelPending();
+        update();
+
+        final EventCache cache = LiepajasAfisa.getEventCache(this);
+        LiepajasAfisa.getLoaderPool(this).submit(new Runnable() {
+            @Override
+            public void run() {
+                index.addStored(cache, showYear, showMonth);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!destroyed && showGeneration == generation) {
+                            update();
+                            fetchMissing(showGeneration);
+                        }
+                    }
+                });
+            }
+        }, ContentLoaderPool.PRIORITY_CURRENT);
+    }
+
+    /**
+     * Queues loads of days within {@link #FILL_WINDOW} of today that are not stored,
+     * with prefetch priority.
+     */
+    private void fetchMissing(final int showGeneration) {
+        ContentHandlerStatus status = new ContentHandlerStatus() {
+            @Override
+            public void onComplete(Map<String, List<Event>> events) {
+                // index was updated when the day was stored
+                postUpdate(showGeneration);
+            }
+
+            @Override
+            public void onError(int errorCode, String message) {
+            }
+        };
+        Calendar day = Calendar.getInstance();
+        day.add(Calendar.DATE, -FILL_WINDOW);
+        long first = ContentLoader.getDayKey(day);
+        day.add(Calendar.DATE, 2 * FILL_WINDOW);
+        long last = ContentLoader.getDayKey(day);
+
+        ContentLoaderPool pool = LiepajasAfisa.getLoaderPool(this);
+        for (long dayKey : index.getMonth(year, month).getMissingDays()) {
+            if (dayKey >= first && dayKey <= last) {
+                pending.add(pool.execute(LiepajasAfisa.createLoader(this,
+                    ContentLoader.getDay(dayKey), status), ContentLoaderPool.PRIORITY_PREFETCH));
+            }
+        }
+    }
+
+    private void cancelPending() {
+        for (ContentLoaderPool.Request request : pending) {
+            request.cancel();
+        }
+        pending = new ArrayList<ContentLoaderPool.Request>();
+    }
+
+    private void postUpdate(final int showGeneration) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!destroyed && showGeneration == generation && !updatePosted) {
+                    updatePosted = true;
+                    handler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            updatePosted = false;
+                            if (!destroyed && showGeneration == generation) {
+                                update();
+                            }
+                        }
+                    }, 250);
+                }
+            }
+        });
+    }
+
+    private void update() {
+        MonthIndex.Month summary = index.getMonth(year, month);
+
+        SimpleDateFormat format = new SimpleDateFormat("MMMM yyyy");
+        title.setText(format.format(ContentLoader.getDay(summary.dayKeys[0]).getTime()));
+
+        StringBuilder text = new StringBuilder(getString(R.string.month_total, summary.total));
+        for (Map.Entry<String, Integer> category : summary.categoryTotals.entrySet()) {
+            text.append(", ").append(category.getKey()).append(' ').append(category.getValue());
+        }
+        totals.setText(text);
+        adapter.setMonth(summary);
+    }
+
+    /**
+     * Shows a row for each day of the month using the same layout as the event list.
+     */
+    private static class DayAdapter extends BaseAdapter {
+        private final Context context;
+
+        private final LayoutInflater inflater;
+
+        private final DateFormat format = new SimpleDateFormat("EEE, d. MMMM");
+
+        private MonthIndex.Month month;
+
+        DayAdapter(Context context) {
+            this.context = context;
+            inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        }
+
+        void setMonth(MonthIndex.Month month) {
+            this.month = month;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return month == null ? 0 : month.dayKeys.length;
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return month.days[position];
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return month.dayKeys[position];
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View entry = convertView;
+            ViewHolder holder;
+            if (entry == null) {
+                entry = inflater.inflate(R.layout.main, null);
+                holder = new ViewHolder();
+                holder.description = (TextView) entry.findViewById(R.id.description);
+                holder.name = (TextView) entry.findViewById(R.id.name);
+                entry.setTag(holder);
+            } else {
+                holder = (ViewHolder) entry.getTag();
+            }
+
+            holder.description.setText(
+                format.format(ContentLoader.getDay(month.dayKeys[position]).getTime()));
+
+            MonthIndex.DayCounts day = month.days[position];
+            if (day == null) {
+                holder.name.setText(context.getString(R.string.month_unknown));
+                return entry;
+            }
+            StringBuilder text = new StringBuilder(
+                context.getString(R.string.month_events, day.total));
+            for (int i = 0; i < day.categories.length && i < DAY_CATEGORIES; i++) {
+                text.append(i == 0 ? " (" : ", ")
+                    .append(day.categories[i]).append(' ').append(day.counts[i]);
+            }
+            if (day.categories.length > 0) {
+                text.append(day.categories.length > DAY_CATEGORIES ? ", ...)" : ")");
+            }
+            holder.name.setText(text);
+            return entry;
+        }
+    }
+
+    private static class ViewHolder {
+        TextView description;
+
+        TextView name;
+    }
+}
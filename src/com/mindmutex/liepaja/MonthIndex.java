@@ -0,0 +1,396 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Number of events per day and category of stored days, kept up to date as an
+ * {@link EventCache.Listener}. A whole month is summarized from counts only, no day is
+ * loaded or converted to {@link Event} lists.
+ * <p>
+ * Counts of each month are also kept in a small file so after restart only days stored
+ * without the index listening are read from disk.
+ */
+public class MonthIndex implements EventCache.Listener {
+
+    /**
+     * Counts of a single day.
+     */
+    public static class DayCounts {
+        public final long dayKey;
+
+        public final String[] categories;
+
+        public final int[] counts;
+
+        public final int total;
+
+        DayCounts(long dayKey, DaySnapshot snapshot) {
+            this.dayKey = dayKey;
+            int count = snapshot.getCategoryCount();
+            this.categories = new String[count];
+            this.counts = new int[count];
+            for (int group = 0; group < count; group++) {
+                categories[group] = snapshot.getCategory(group);
+                counts[group] = snapshot.getEnd(group) - snapshot.getStart(group);
+            }
+            this.total = snapshot.getEventCount();
+        }
+
+        DayCounts(long dayKey, String[] categories, int[] counts) {
+            this.dayKey = dayKey;
+            this.categories = categories;
+            this.counts = counts;
+            int total = 0;
+            for (int count : counts) {
+                total += count;
+            }
+            this.total = total;
+        }
+    }
+
+    /**
+     * Summary of a calendar month.
+     */
+    public static class Month {
+        public final int year;
+
+        /**
+         * Month as in {@link Calendar#MONTH}, starting with 0.
+         */
+        public final int month;
+
+        /**
+         * Key of each day of the month, index 0 is the first day.
+         */
+        public final long[] dayKeys;
+
+        /**
+         * Counts of each day or null if the day is not stored.
+         */
+        public final DayCounts[] days;
+
+        /**
+         * Events per category over stored days, most frequent first.
+         */
+        public final Map<String, Integer> categoryTotals;
+
+        public final int total;
+
+        Month(int year, int month, long[] dayKeys, DayCounts[] days) {
+            this.year = year;
+            this.month = month;
+            this.dayKeys = dayKeys;
+            this.days = days;
+
+            final Map<String, Integer> totals = new HashMap<String, Integer>();
+            int total = 0;
+            for (DayCounts day : days) {
+                if (day == null) {
+                    continue;
+                }
+                total += day.total;
+                for (int i = 0; i < day.categories.length; i++) {
+                    Integer sum = totals.get(day.categories[i]);
+                    totals.put(day.categories[i], (sum == null ? 0 : sum) + day.counts[i]);
+                }
+            }
+            List<String> names = new ArrayList<String>(totals.keySet());
+            Collections.sort(names, new Comparator<String>() {
+                @Override
+                public int compare(String left, String right) {
+                    int difference = totals.get(right) - totals.get(left);
+                    return difference != 0 ? difference : left.compareTo(right);
+                }
+            });
+            this.categoryTotals = new LinkedHashMap<String, Integer>();
+            for (String name : names) {
+                categoryTotals.put(name, totals.get(name));
+            }
+            this.total = total;
+        }
+
+        /**
+         * @return keys of days that are not stored
+         */
+        public List<Long> getMissingDays() {
+            List<Long> missing = new ArrayList<Long>();
+            for (int i = 0; i < days.length; i++) {
+                if (days[i] == null) {
+                    missing.add(dayKeys[i]);
+                }
+            }
+            return missing;
+        }
+    }
+
+    /**
+     * Version of the counts file, files of other versions are ignored.
+     */
+    private static final int VERSION = 1;
+
+    private final TreeMap<Long, DayCounts> days = new TreeMap<Long, DayCounts>();
+
+    /**
+     * Directory of the counts files or null to keep counts in memory only.
+     */
+    private final File directory;
+
+    /**
+     * Months already checked against stored days, see {@link #addStored(EventCache, int, int)}.
+     */
+    private final Set<Integer> checkedMonths = new HashSet<Integer>();
+
+    /**
+     * Serializes writes of counts files.
+     */
+    private final Object writeLock = new Object();
+
+    public MonthIndex() {
+        this(null);
+    }
+
+    /**
+     * @param directory directory of the counts files or null to keep counts in memory only
+     */
+    public MonthIndex(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void onStored(long dayKey, DaySnapshot snapshot) {
+        synchronized (this) {
+            days.put(dayKey, new DayCounts(dayKey, snapshot));
+        }
+        Calendar day = ContentLoader.getDay(dayKey);
+        write(day.get(Calendar.YEAR), day.get(Calendar.MONTH));
+    }
+
+    public synchronized boolean contains(long dayKey) {
+        return days.containsKey(dayKey);
+    }
+
+    /**
+     * Indexes stored days of the month that are not indexed yet. Counts are read from
+     * the counts file, only days missing there are read from disk, without adding them
+     * to the memory tier. Should be called from a background thread.
+     *
+     * @param cache cache days are stored in
+     * @param year year
+     * @param month month starting with 0
+     */
+    public void addStored(EventCache cache, int year, int month) {
+        long[] keys = getDayKeys(year, month);
+        long first = keys[0];
+        long last = keys[keys.length - 1];
+        Set<Long> stored = new HashSet<Long>();
+        for (long dayKey : cache.getStoredDays()) {
+            if (dayKey >= first && dayKey <= last) {
+                stored.add(dayKey);
+            }
+        }
+
+        boolean changed = false;
+        synchronized (this) {
+            if (checkedMonths.add(year * 12 + month)) {
+                for (DayCounts counts : read(year, month)) {
+                    if (stored.contains(counts.dayKey) && !days.containsKey(counts.dayKey)) {
+                        days.put(counts.dayKey, counts);
+                    }
+                }
+            }
+            // days pruned from the cache, unless stored again meanwhile
+            for (long dayKey : keys) {
+                if (!stored.contains(dayKey) && days.containsKey(dayKey)
+                        && cache.peekEntry(dayKey) == null) {
+                    days.remove(dayKey);
+                    changed = true;
+                }
+            }
+        }
+
+        for (long dayKey : stored) {
+            if (contains(dayKey)) {
+                continue;
+            }
+            EventCache.Entry entry = cache.loadEntry(dayKey);
+            if (entry != null) {
+                synchronized (this) {
+                    // a newer version may have been stored meanwhile
+                    if (!days.containsKey(dayKey)) {
+                        days.put(dayKey, new DayCounts(dayKey, entry.snapshot));
+                        changed = true;
+                    }
+                }
+            }
+        }
+        if (changed) {
+            write(year, month);
+        }
+    }
+
+    /**
+     * @param year year
+     * @param month month starting with 0
+     * @return summary of the month from indexed days
+     */
+    public synchronized Month getMonth(int year, int month) {
+        long[] keys = getDayKeys(year, month);
+        DayCounts[] counts = new DayCounts[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            counts[i] = days.get(keys[i]);
+        }
+        return new Month(year, month, keys, counts);
+    }
+
+    /**
+     * Reads counts file of the month. Any problem with the file is treated as if
+     * nothing was counted.
+     *
+     * @return counts of the month, empty if not available
+     */
+    private List<DayCounts> read(int year, int month) {
+        List<DayCounts> result = new ArrayList<DayCounts>();
+        File file = getFile(year, month);
+        if (file == null || !file.exists()) {
+            return result;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != VERSION) {
+                    return result;
+                }
+                int dayCount = in.readInt();
+                for (int i = 0; i < dayCount; i++) {
+                    long dayKey = in.readLong();
+                    int categoryCount = in.readInt();
+                    if (categoryCount < 0 || categoryCount > 1024) {
+                        throw new IOException("Invalid category count " + categoryCount);
+                    }
+                    String[] categories = new String[categoryCount];
+                    int[] counts = new int[categoryCount];
+                    for (int group = 0; group < categoryCount; group++) {
+                        categories[group] = StringDictionary.shareCategory(in.readUTF());
+                        counts[group] = in.readInt();
+                    }
+                    result.add(new DayCounts(dayKey, categories, counts));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            file.delete();
+            result.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Writes counts of the month indexed in memory. Data is written to a temporary file
+     * and renamed, a failed write only means the days are counted again later.
+     */
+    private void write(int year, int month) {
+        File file = getFile(year, month);
+        if (file == null) {
+            return;
+        }
+        synchronized (writeLock) {
+            List<DayCounts> counts = new ArrayList<DayCounts>();
+            synchronized (this) {
+                for (long dayKey : getDayKeys(year, month)) {
+                    DayCounts day = days.get(dayKey);
+                    if (day != null) {
+                        counts.add(day);
+                    }
+                }
+            }
+            directory.mkdirs();
+            File temp = new File(directory, file.getName() + ".tmp");
+            try {
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+                try {
+                    out.writeInt(VERSION);
+                    out.writeInt(counts.size());
+                    for (DayCounts day : counts) {
+                        out.writeLong(day.dayKey);
+                        out.writeInt(day.categories.length);
+                        for (int group = 0; group < day.categories.length; group++) {
+                            out.writeUTF(day.categories[group]);
+                            out.writeInt(day.counts[group]);
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(file)) {
+                    temp.delete();
+                }
+            } catch (IOException ex) {
+                temp.delete();
+            }
+        }
+    }
+
+    private File getFile(int year, int month) {
+        return directory == null
+            ? null : new File(directory, String.format("%04d-%02d.counts", year, month + 1));
+    }
+
+    /**
+     * @param year year
+     * @param month month starting with 0
+     * @return key of every day of the month in order
+     */
+    static long[] getDayKeys(int year, int month) {
+        Calendar day = Calendar.getInstance();
+        day.clear();
+        day.set(year, month, 1);
+        long[] keys = new long[day.getActualMaximum(Calendar.DAY_OF_MONTH)];
+        for (int i = 0; i < keys.length; i++) {
+            day.set(Calendar.DAY_OF_MONTH, i + 1);
+            keys[i] = ContentLoader.getDayKey(day);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.util.List;
+
+/**
+ * Extended {@link ContentHandlerStatus} notified about every category as soon as it is
+ * extracted, before the whole page is parsed. {@link #onComplete(java.util.Map)} is still
+ * called at the end with all categories.
+ */
+public interface ProgressiveContentHandler extends ContentHandlerStatus {
+
+    /**
+     * Method called when all rows of a category seen so far are extracted. Can be called
+     * again for the same category if it appears on the page more than once.
+     *
+     * @param category name of the category
+     * @param events copy of events extracted so far for the category
+     * @param elapsed milliseconds since the load started, used to measure time to first content
+     */
+    void onCategory(String category, List<Event> events, long elapsed);
+}
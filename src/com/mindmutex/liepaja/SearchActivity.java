@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import android.app.ListActivity;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.Html;
+import android.text.TextWatcher;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.TextView;
+
+/**
+ * Searches stored days using {@link SearchIndex} without contacting the site. Results
+ * start from today and can be restricted by category and time of day.
+ */
+public class SearchActivity extends ListActivity
+        implements TextWatcher, AdapterView.OnItemSelectedListener {
+
+    /**
+     * Minute ranges matching <i>time_of_day_names</i> array, -1 means not restricted.
+     */
+    private static final int[][] TIME_RANGES = {
+        {-1, -1}, {0, 12 * 60}, {12 * 60, 18 * 60}, {18 * 60, 24 * 60}
+    };
+
+    private final Handler handler = new Handler();
+
+    private SearchIndex index;
+
+    private EditText query;
+
+    private Spinner category;
+
+    private Spinner timeOfDay;
+
+    private ArrayAdapter<String> categories;
+
+    private HitAdapter adapter;
+
+    private volatile boolean destroyed = false;
+
+    /**
+     * Incremented with every query, see {@link #search()}.
+     */
+    private volatile int generation = 0;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.search);
+
+        index = LiepajasAfisa.getSearchIndex(this);
+        adapter = new HitAdapter(this);
+        setListAdapter(adapter);
+
+        query = (EditText) findViewById(R.id.query);
+        query.addTextChangedListener(this);
+
+        categories = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item);
+        categories.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        category = (Spinner) findViewById(R.id.category);
+        category.setAdapter(categories);
+        category.setOnItemSelectedListener(this);
+
+        ArrayAdapter<CharSequence> times = ArrayAdapter.createFromResource(
+            this, R.array.time_of_day_names, android.R.layout.simple_spinner_item);
+        times.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        timeOfDay = (Spinner) findViewById(R.id.time_of_day);
+        timeOfDay.setAdapter(times);
+        timeOfDay.setOnItemSelectedListener(this);
+
+        updateCategories();
+        search();
+
+        // days stored before the index was created are added from disk
+        final EventCache cache = LiepajasAfisa.getEventCache(this);
+        LiepajasAfisa.getLoaderPool(this).submit(new Runnable() {
+            @Override
+            public void run() {
+                index.addStored(cache);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!destroyed) {
+                            updateCategories();
+                            search();
+                        }
+                    }
+                });
+            }
+        }, ContentLoaderPool.PRIORITY_PREFETCH);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        destroyed = true;
+    }
+
+    /**
+     * Fills category filter keeping the current selection.
+     */
+    private void updateCategories() {
+        String selected = category.getSelectedItemPosition() > 0
+            ? (String) category.getSelectedItem() : null;
+
+        categories.clear();
+        categories.add(getString(R.string.search_any_category));
+        for (String name : index.getCategories()) {
+            categories.add(name);
+        }
+        int position = selected == null ? 0 : categories.getPosition(selected);
+        category.setSelection(Math.max(position, 0));
+    }
+
+    /**
+     * Runs the query on the loader pool, events of the hits are read from the cache and
+     * their text is prepared there too. Results of older queries are ignored.
+     */
+    private void search() {
+        final SearchIndex.Filter filter = new SearchIndex.Filter();
+        filter.fromDay = ContentLoader.getDayKey(Calendar.getInstance());
+        if (category.getSelectedItemPosition() > 0) {
+            filter.category = (String) category.getSelectedItem();
+        }
+        int[] range = TIME_RANGES[Math.max(0, timeOfDay.getSelectedItemPosition())];
+        filter.fromMinutes = range[0];
+        filter.toMinutes = range[1];
+
+        final String text = query.getText().toString();
+        final int searchGeneration = ++generation;
+        final EventCache cache = LiepajasAfisa.getEventCache(this);
+        LiepajasAfisa.getLoaderPool(this).submit(new Runnable() {
+            @Override
+            public void run() {
+                if (searchGeneration != generation) {
+                    return;
+                }
+                final List<Row> rows = prepareRows(index.search(text, filter, cache));
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!destroyed && searchGeneration == generation) {
+                            adapter.setRows(rows);
+                        }
+                    }
+                });
+            }
+        }, ContentLoaderPool.PRIORITY_CURRENT);
+    }
+
+    /**
+     * Converts hits to text shown in the list, HTML is parsed once per hit.
+     */
+    private static List<Row> prepareRows(List<SearchIndex.Hit> hits) {
+        DateFormat format = DateFormat.getDateInstance(DateFormat.SHORT);
+        List<Row> rows = new ArrayList<Row>(hits.size());
+        for (SearchIndex.Hit hit : hits) {
+            String name = format.format(ContentLoader.getDay(hit.dayKey).getTime())
+                + " " + hit.event.location;
+            if (hit.event.timestamp.length() > 0) {
+                name += " @ " + hit.event.timestamp;
+            }
+            rows.add(new Row(Html.fromHtml(name + " (" + hit.category + ")"),
+                Html.fromHtml(hit.event.description)));
+        }
+        return rows;
+    }
+
+    @Override
+    public void afterTextChanged(Editable text) {
+        search();
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence text, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence text, int start, int before, int count) {
+    }
+
+    @Override
+    public void onItemSelected(AdapterView parent, View view, int position, long id) {
+        search();
+    }
+
+    @Override
+    public void onNothingSelected(AdapterView parent) {
+        search();
+    }
+
+    /**
+     * Text of a single hit.
+     */
+    private static class Row {
+        final CharSequence name;
+
+        final CharSequence description;
+
+        Row(CharSequence name, CharSequence description) {
+            this.name = name;
+            this.description = description;
+        }
+    }
+
+    /**
+     * Shows hits using the same row layout as the event list.
+     */
+    private static class HitAdapter extends BaseAdapter {
+        private final LayoutInflater inflater;
+
+        private List<Row> rows = new ArrayList<Row>();
+
+        HitAdapter(Context context) {
+            inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        }
+
+        void setRows(List<Row> rows) {
+            this.rows = rows;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return rows.size();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return rows.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View entry = convertView;
+            ViewHolder holder;
+            if (entry == null) {
+                entry = inflater.inflate(R.layout.main, null);
+                holder = new ViewHolder();
+                holder.description = (TextView) entry.findViewById(R.id.description);
+                holder.name = (TextView) entry.findViewById(R.id.name);
+                entry.setTag(holder);
+            } else {
+                holder = (ViewHolder) entry.getTag();
+            }
+
+            Row row = rows.get(position);
+            holder.description.setText(row.description);
+            holder.name.setText(row.name);
+            return entry;
+        }
+    }
+
+    private static class ViewHolder {
+        TextView description;
+
+        TextView name;
+    }
+}
@@ -0,0 +1,544 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * In memory inverted index over location, description and category of stored days.
+ * <p>
+ * Text is split into words with HTML tags and entities removed, lower cased and
+ * Latvian diacritics folded (<i>&#257;</i> to <i>a</i>, <i>&#353;</i> to <i>s</i> etc.) so
+ * "kino" finds "Kino" and "zale" finds "z&#257;le". Every query word is matched as a prefix
+ * using the sorted term map. Re-indexing a day replaces its previous events, removed
+ * documents are filtered at query time and dropped once they outnumber live ones.
+ * <p>
+ * Registered as {@link EventCache.Listener} the index follows the cache incrementally.
+ * Only postings and the fields needed to filter and order documents are kept, events
+ * of the returned hits are read from the cache.
+ */
+public class SearchIndex implements EventCache.Listener {
+
+    /**
+     * Single matching event.
+     */
+    public static class Hit {
+        public final long dayKey;
+
+        public final String category;
+
+        public final Event event;
+
+        /**
+         * Minutes since midnight or -1 if not known.
+         */
+        public final int minutes;
+
+        /**
+         * Position and {@link DaySnapshot#contentHash(int)} of the event in its day,
+         * used before the event is read.
+         */
+        final int position;
+
+        final long hash;
+
+        Hit(long dayKey, String category, Event event, int minutes) {
+            this.dayKey = dayKey;
+            this.category = category;
+            this.event = event;
+            this.minutes = minutes;
+            this.position = -1;
+            this.hash = 0;
+        }
+
+        Hit(long dayKey, String category, int position, long hash, int minutes) {
+            this.dayKey = dayKey;
+            this.category = category;
+            this.event = null;
+            this.minutes = minutes;
+            this.position = position;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Restricts results, all conditions are optional.
+     */
+    public static class Filter {
+        /**
+         * Exact category or null for any.
+         */
+        public String category;
+
+        /**
+         * Earliest day key, inclusive.
+         */
+        public long fromDay = Long.MIN_VALUE;
+
+        /**
+         * Latest day key, inclusive.
+         */
+        public long toDay = Long.MAX_VALUE;
+
+        /**
+         * Time of day range in minutes, inclusive start and exclusive end. When set
+         * events without known time are excluded.
+         */
+        public int fromMinutes = -1;
+
+        public int toMinutes = -1;
+
+        /**
+         * Maximum number of results.
+         */
+        public int limit = 200;
+
+        boolean accepts(String eventCategory, int eventMinutes) {
+            if (category != null && !category.equals(eventCategory)) {
+                return false;
+            }
+            if (fromMinutes >= 0 && (eventMinutes < 0 || eventMinutes < fromMinutes)) {
+                return false;
+            }
+            if (toMinutes >= 0 && (eventMinutes < 0 || eventMinutes >= toMinutes)) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Document ids of events containing the term, ascending.
+     */
+    private static class Postings {
+        int[] documents = new int[4];
+
+        int size;
+
+        void add(int document) {
+            if (size > 0 && documents[size - 1] == document) {
+                return;
+            }
+            if (size == documents.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(documents, 0, grown, 0, size);
+                documents = grown;
+            }
+            documents[size++] = document;
+        }
+    }
+
+    /**
+     * Latvian letters with diacritics and their base letters.
+     */
+    private static final String ACCENTED = "\u0101\u010d\u0113\u0123\u012b\u0137\u013c\u0146\u014d\u0157\u0161\u016b\u017e";
+    private static final String FOLDED = "acegiklnorsuz";
+
+    private static final Comparator<Hit> ORDER = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit first, Hit second) {
+            if (first.dayKey != second.dayKey) {
+                return first.dayKey < second.dayKey ? -1 : 1;
+            }
+            // unknown time sorts last within the day
+            int firstMinutes = first.minutes < 0 ? Integer.MAX_VALUE : first.minutes;
+            int secondMinutes = second.minutes < 0 ? Integer.MAX_VALUE : second.minutes;
+            return firstMinutes < secondMinutes ? -1 : (firstMinutes == secondMinutes ? 0 : 1);
+        }
+    };
+
+    private final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+
+    /**
+     * Indexed days, events themselves are not kept and are read from {@link EventCache}
+     * only for returned hits.
+     */
+    private final Map<Long, Day> days = new HashMap<Long, Day>();
+
+    private long[] documentDays = new long[256];
+
+    private int[] documentPositions = new int[256];
+
+    /**
+     * Fields used to filter and order documents without reading their day.
+     */
+    private int[] documentMinutes = new int[256];
+
+    private String[] documentCategories = new String[256];
+
+    /**
+     * {@link DaySnapshot#contentHash(int)} of each document, used to skip hits whose
+     * day was stored again but not yet re-indexed.
+     */
+    private long[] documentHashes = new long[256];
+
+    private int documentCount;
+
+    private final BitSet removed = new BitSet();
+
+    private int removedCount;
+
+    /**
+     * Documents of an indexed day, they are consecutive.
+     */
+    private static class Day {
+        int start;
+
+        final int count;
+
+        final String[] categories;
+
+        Day(int start, int count, String[] categories) {
+            this.start = start;
+            this.count = count;
+            this.categories = categories;
+        }
+    }
+
+    @Override
+    public void onStored(long dayKey, DaySnapshot snapshot) {
+        update(dayKey, snapshot);
+    }
+
+    /**
+     * Indexes all stored days that are not indexed yet. Reads from disk so it should not
+     * be called from UI thread. Days are read without entering the memory tier of the
+     * cache and are not kept once indexed.
+     *
+     * @param cache cache to read days from
+     */
+    public void addStored(EventCache cache) {
+        for (long dayKey : cache.getStoredDays()) {
+            if (!contains(dayKey)) {
+                EventCache.Entry entry = cache.loadEntry(dayKey);
+                if (entry != null) {
+                    // cache may have stored newer content meanwhile
+                    synchronized (this) {
+                        if (!days.containsKey(dayKey)) {
+                            update(dayKey, entry.snapshot);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized boolean contains(long dayKey) {
+        return days.containsKey(dayKey);
+    }
+
+    /**
+     * Replaces indexed events of the day.
+     *
+     * @param dayKey day start epoch in seconds
+     * @param snapshot events of the day
+     */
+    public synchronized void update(long dayKey, DaySnapshot snapshot) {
+        remove(dayKey);
+        if (removedCount > 1024 && removedCount > documentCount - removedCount) {
+            compact();
+        }
+        addDocuments(dayKey, snapshot);
+    }
+
+    /**
+     * Removes events of the day from results.
+     *
+     * @param dayKey day start epoch in seconds
+     */
+    public synchronized void remove(long dayKey) {
+        Day day = days.remove(dayKey);
+        if (day != null) {
+            removed.set(day.start, day.start + day.count);
+            removedCount += day.count;
+        }
+    }
+
+    /**
+     * @return categories of all indexed days in alphabetical order
+     */
+    public synchronized List<String> getCategories() {
+        TreeSet<String> categories = new TreeSet<String>();
+        for (Day day : days.values()) {
+            Collections.addAll(categories, day.categories);
+        }
+        return new ArrayList<String>(categories);
+    }
+
+    /**
+     * Finds events containing words starting with every word of the query. Events of
+     * the hits are read from the cache so it should not be called from UI thread.
+     *
+     * @param query words to search for, empty query matches all events
+     * @param filter additional conditions or null
+     * @param cache cache the indexed days are read from
+     * @return hits ordered by day and time
+     */
+    public List<Hit> search(String query, Filter filter, EventCache cache) {
+        List<Hit> candidates = select(query, filter != null ? filter : new Filter());
+
+        // hits are ordered by day so each day is read once
+        List<Hit> hits = new ArrayList<Hit>(candidates.size());
+        DaySnapshot snapshot = null;
+        long snapshotDay = 0;
+        boolean read = false;
+        for (Hit candidate : candidates) {
+            if (!read || candidate.dayKey != snapshotDay) {
+                EventCache.Entry entry = cache.loadEntry(candidate.dayKey);
+                snapshot = entry != null ? entry.snapshot : null;
+                snapshotDay = candidate.dayKey;
+                read = true;
+            }
+            int position = candidate.position;
+            if (snapshot != null && position < snapshot.getEventCount()
+                    && snapshot.contentHash(position) == candidate.hash) {
+                hits.add(new Hit(candidate.dayKey, candidate.category,
+                    snapshot.getEvent(position), candidate.minutes));
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Finds matching documents, orders them and applies the limit before any event
+     * is read.
+     *
+     * @return hits without events
+     */
+    private synchronized List<Hit> select(String query, Filter filter) {
+        List<String> words = new ArrayList<String>();
+        tokenize(query, words);
+
+        BitSet matches = null;
+        for (String word : words) {
+            BitSet documents = new BitSet(documentCount);
+            SortedMap<String, Postings> prefixed = terms.subMap(word, word + Character.MAX_VALUE);
+            for (Postings postings : prefixed.values()) {
+                for (int i = 0; i < postings.size; i++) {
+                    documents.set(postings.documents[i]);
+                }
+            }
+            if (matches == null) {
+                matches = documents;
+            } else {
+                matches.and(documents);
+            }
+            if (matches.isEmpty()) {
+                return new ArrayList<Hit>();
+            }
+        }
+        if (matches == null) {
+            matches = new BitSet(documentCount);
+            matches.set(0, documentCount);
+        }
+        matches.andNot(removed);
+
+        List<Hit> hits = new ArrayList<Hit>();
+        for (int document = matches.nextSetBit(0); document >= 0;
+                document = matches.nextSetBit(document + 1)) {
+            long dayKey = documentDays[document];
+            if (dayKey < filter.fromDay || dayKey > filter.toDay) {
+                continue;
+            }
+            String category = documentCategories[document];
+            int minutes = documentMinutes[document];
+            if (filter.accepts(category, minutes)) {
+                hits.add(new Hit(dayKey, category, documentPositions[document],
+                    documentHashes[document], minutes));
+            }
+        }
+        Collections.sort(hits, ORDER);
+        if (hits.size() > filter.limit) {
+            return new ArrayList<Hit>(hits.subList(0, filter.limit));
+        }
+        return hits;
+    }
+
+    private void addDocuments(long dayKey, DaySnapshot snapshot) {
+        int start = documentCount;
+        String[] categories = new String[snapshot.getCategoryCount()];
+
+        List<String> words = new ArrayList<String>();
+        for (int group = 0; group < snapshot.getCategoryCount(); group++) {
+            categories[group] = snapshot.getCategory(group);
+            words.clear();
+            tokenize(categories[group], words);
+            int categoryWords = words.size();
+            for (int position = snapshot.getStart(group); position < snapshot.getEnd(group); position++) {
+                int document = addDocument(dayKey, snapshot, group, position);
+                // keep category words, replace event words
+                while (words.size() > categoryWords) {
+                    words.remove(words.size() - 1);
+                }
+                tokenize(snapshot.getLocation(position), words);
+                tokenize(snapshot.getDescription(position), words);
+                for (String word : words) {
+                    Postings postings = terms.get(word);
+                    if (postings == null) {
+                        postings = new Postings();
+                        terms.put(word, postings);
+                    }
+                    postings.add(document);
+                }
+            }
+        }
+        days.put(dayKey, new Day(start, documentCount - start, categories));
+    }
+
+    private int addDocument(long dayKey, DaySnapshot snapshot, int group, int position) {
+        if (documentCount == documentDays.length) {
+            resize(documentCount * 2);
+        }
+        documentDays[documentCount] = dayKey;
+        documentPositions[documentCount] = position;
+        documentMinutes[documentCount] = snapshot.getMinutes(position);
+        documentCategories[documentCount] = snapshot.getCategory(group);
+        documentHashes[documentCount] = snapshot.contentHash(position);
+        return documentCount++;
+    }
+
+    private void resize(int capacity) {
+        long[] grownDays = new long[capacity];
+        System.arraycopy(documentDays, 0, grownDays, 0, documentCount);
+        documentDays = grownDays;
+        int[] grownPositions = new int[capacity];
+        System.arraycopy(documentPositions, 0, grownPositions, 0, documentCount);
+        documentPositions = grownPositions;
+        int[] grownMinutes = new int[capacity];
+        System.arraycopy(documentMinutes, 0, grownMinutes, 0, documentCount);
+        documentMinutes = grownMinutes;
+        String[] grownCategories = new String[capacity];
+        System.arraycopy(documentCategories, 0, grownCategories, 0, documentCount);
+        documentCategories = grownCategories;
+        long[] grownHashes = new long[capacity];
+        System.arraycopy(documentHashes, 0, grownHashes, 0, documentCount);
+        documentHashes = grownHashes;
+    }
+
+    /**
+     * Drops removed documents renumbering the live ones, days do not have to be read
+     * again.
+     */
+    private void compact() {
+        int[] renumbered = new int[documentCount];
+        int live = 0;
+        for (int document = 0; document < documentCount; document++) {
+            if (removed.get(document)) {
+                renumbered[document] = -1;
+                continue;
+            }
+            renumbered[document] = live;
+            documentDays[live] = documentDays[document];
+            documentPositions[live] = documentPositions[document];
+            documentMinutes[live] = documentMinutes[document];
+            documentCategories[live] = documentCategories[document];
+            documentHashes[live] = documentHashes[document];
+            live++;
+        }
+        for (int document = live; document < documentCount; document++) {
+            documentCategories[document] = null;
+        }
+
+        Iterator<Postings> iterator = terms.values().iterator();
+        while (iterator.hasNext()) {
+            Postings postings = iterator.next();
+            int size = 0;
+            for (int i = 0; i < postings.size; i++) {
+                int document = renumbered[postings.documents[i]];
+                if (document >= 0) {
+                    postings.documents[size++] = document;
+                }
+            }
+            postings.size = size;
+            if (size == 0) {
+                iterator.remove();
+            }
+        }
+        for (Day day : days.values()) {
+            // a day without events has no document of its own to follow
+            day.start = day.count > 0 ? renumbered[day.start] : live;
+        }
+
+        documentCount = live;
+        removed.clear();
+        removedCount = 0;
+    }
+
+    /**
+     * Splits text into folded words skipping HTML tags and entities.
+     *
+     * @param text text to split, may be null
+     * @param words list words are appended to
+     */
+    static void tokenize(String text, List<String> words) {
+        if (text == null) {
+            return;
+        }
+        StringBuilder word = new StringBuilder();
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                int end = text.indexOf('>', i);
+                if (end > 0) {
+                    i = end;
+                    c = ' ';
+                }
+            } else if (c == '&') {
+                int end = text.indexOf(';', i);
+                if (end > 0 && end - i <= 8) {
+                    i = end;
+                    c = ' ';
+                }
+            }
+            if (Character.isLetterOrDigit(c)) {
+                word.append(fold(c));
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (word.length() > 0) {
+            words.add(word.toString());
+        }
+    }
+
+    /**
+     * @param c character
+     * @return lower case character with Latvian diacritics removed
+     */
+    static char fold(char c) {
+        c = Character.toLowerCase(c);
+        int accented = ACCENTED.indexOf(c);
+        return accented < 0 ? c : FOLDED.charAt(accented);
+    }
+}
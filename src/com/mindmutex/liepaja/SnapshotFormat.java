@@ -0,0 +1,341 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary format of a stored day ({@link EventCache.Entry}).
+ * <p>
+ * All numbers are big endian:
+ * <pre>
+ * int    magic "LAFS"
+ * int    version
+ * long   day key, stored at, last modified
+ * int    url and etag string index, -1 when missing
+ * int    string count S, category count C, event count E
+ * int[S + 1] offset of each string in string data, last is the data length
+ * int[C] category string index
+ * int[C + 1] start position of each category
+ * int[E] location, description and time string index (three arrays)
+ * short[E] minutes of day
+ * byte[] UTF-8 string data
+ * int    CRC32 of all preceding bytes
+ * </pre>
+ * Every distinct string is stored once. Files are read through a memory mapped buffer
+ * and decoded directly into {@link DaySnapshot} arrays, the string table of the file
+ * becomes the string table of the snapshot.
+ */
+public final class SnapshotFormat {
+
+    public static final int MAGIC = 0x4c414653;
+
+    public static final int VERSION = 1;
+
+    /**
+     * Media type of encoded days served over HTTP, see {@link ContentLoader}.
+     */
+    public static final String CONTENT_TYPE = "application/x-liepaja-snapshot";
+
+    /**
+     * Size of the fixed part of header in bytes.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 * 3 + 4 * 2 + 4 * 3;
+
+    private SnapshotFormat() {
+    }
+
+    /**
+     * Encodes entry into bytes.
+     *
+     * @param entry entry to encode
+     * @return encoded entry including checksum
+     */
+    public static byte[] encode(EventCache.Entry entry) {
+        DaySnapshot snapshot = entry.snapshot;
+
+        Map<String, Integer> indexes = new HashMap<String, Integer>();
+        ByteArrayOutputStream strings = new ByteArrayOutputStream(snapshot.getEventCount() * 64);
+        ByteArrayOutputStream offsets = new ByteArrayOutputStream();
+        DataOutputStream offsetsOut = new DataOutputStream(offsets);
+
+        try {
+            int urlIndex = entry.url == null ? -1 : addString(entry.url, indexes, strings, offsetsOut);
+            int etagIndex = entry.etag == null ? -1 : addString(entry.etag, indexes, strings, offsetsOut);
+
+            int categoryCount = snapshot.getCategoryCount();
+            int eventCount = snapshot.getEventCount();
+            int[] categories = new int[categoryCount];
+            int[] columns = new int[eventCount * 3];
+            for (int group = 0; group < categoryCount; group++) {
+                categories[group] = addString(snapshot.getCategory(group), indexes, strings, offsetsOut);
+            }
+            for (int i = 0; i < eventCount; i++) {
+                columns[i] = addString(snapshot.getLocation(i), indexes, strings, offsetsOut);
+                columns[eventCount + i] = addString(snapshot.getDescription(i), indexes, strings, offsetsOut);
+                columns[eventCount * 2 + i] = addString(snapshot.getTimestamp(i), indexes, strings, offsetsOut);
+            }
+            offsetsOut.writeInt(strings.size());
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                HEADER_SIZE + offsets.size() + eventCount * 14 + strings.size() + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(entry.dayKey);
+            out.writeLong(entry.storedAt);
+            out.writeLong(entry.lastModified);
+            out.writeInt(urlIndex);
+            out.writeInt(etagIndex);
+            out.writeInt(indexes.size());
+            out.writeInt(categoryCount);
+            out.writeInt(eventCount);
+            offsets.writeTo(out);
+            for (int category : categories) {
+                out.writeInt(category);
+            }
+            for (int group = 0; group <= categoryCount; group++) {
+                out.writeInt(group < categoryCount ? snapshot.getStart(group) : eventCount);
+            }
+            for (int column : columns) {
+                out.writeInt(column);
+            }
+            for (int i = 0; i < eventCount; i++) {
+                out.writeShort(snapshot.getMinutes(i));
+            }
+            strings.writeTo(out);
+            out.flush();
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            // writing to memory does not fail
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes entry to a file. Data is written to temporary file, synced and renamed so
+     * the file is either the previous or the new version, never partially written.
+     *
+     * @param file target file
+     * @param entry entry to write
+     * @throws IOException if writing fails, target file is not modified
+     */
+    public static void write(File file, EventCache.Entry entry) throws IOException {
+        byte[] data = encode(entry);
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } catch (IOException ex) {
+            out.close();
+            temp.delete();
+            throw ex;
+        }
+        out.close();
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp);
+        }
+    }
+
+    /**
+     * Reads entry from a file using memory mapped buffer.
+     *
+     * @param file file written by {@link #write(File, EventCache.Entry)}
+     * @return entry
+     * @throws IOException if file can not be read, is of other version or corrupted
+     */
+    public static EventCache.Entry read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decodes entry from buffer positioned at the start of encoded data.
+     *
+     * @param buffer encoded data
+     * @return entry
+     * @throws IOException if data is of other version or corrupted
+     */
+    public static EventCache.Entry decode(ByteBuffer buffer) throws IOException {
+        int base = buffer.position();
+        int length = buffer.remaining();
+        if (length < HEADER_SIZE + 4) {
+            throw new IOException("Snapshot is truncated");
+        }
+        if (buffer.getInt(base) != MAGIC) {
+            throw new IOException("Not a snapshot");
+        }
+        if (buffer.getInt(base + 4) != VERSION) {
+            throw new IOException("Unsupported snapshot version " + buffer.getInt(base + 4));
+        }
+        verifyChecksum(buffer, base, length);
+
+        ByteBuffer in = buffer.duplicate();
+        in.position(base + 8);
+        long dayKey = in.getLong();
+        long storedAt = in.getLong();
+        long lastModified = in.getLong();
+        int urlIndex = in.getInt();
+        int etagIndex = in.getInt();
+        int stringCount = in.getInt();
+        int categoryCount = in.getInt();
+        int eventCount = in.getInt();
+
+        long expected = HEADER_SIZE + 4L * (stringCount + 1) + 4L * categoryCount
+            + 4L * (categoryCount + 1) + 12L * eventCount + 2L * eventCount + 4;
+        if (stringCount < 0 || categoryCount < 0 || eventCount < 0 || expected > length) {
+            throw new IOException("Snapshot is corrupted");
+        }
+
+        int offsetsStart = in.position();
+        int dataStart = base + (int) (expected - 4);
+        int dataLength = in.getInt(offsetsStart + stringCount * 4);
+        if (dataStart + dataLength != base + length - 4) {
+            throw new IOException("Snapshot is corrupted");
+        }
+
+        // decode each distinct string once
+        String[] strings = new String[stringCount];
+        byte[] scratch = new byte[256];
+        for (int i = 0; i < stringCount; i++) {
+            int start = in.getInt(offsetsStart + i * 4);
+            int end = in.getInt(offsetsStart + i * 4 + 4);
+            if (start < 0 || end < start || end > dataLength) {
+                throw new IOException("Snapshot is corrupted");
+            }
+            if (scratch.length < end - start) {
+                scratch = new byte[end - start];
+            }
+            ByteBuffer data = buffer.duplicate();
+            data.position(dataStart + start);
+            data.get(scratch, 0, end - start);
+            strings[i] = decodeString(scratch, end - start);
+        }
+
+        in.position(offsetsStart + (stringCount + 1) * 4);
+        int[] categories = readIndexes(in, categoryCount, stringCount);
+        for (int category : categories) {
+            strings[category] = StringDictionary.shareCategory(strings[category]);
+        }
+        int[] starts = new int[categoryCount + 1];
+        for (int i = 0; i <= categoryCount; i++) {
+            starts[i] = in.getInt();
+            if (starts[i] < 0 || starts[i] > eventCount || (i > 0 && starts[i] < starts[i - 1])) {
+                throw new IOException("Snapshot is corrupted");
+            }
+        }
+        int[] locations = readIndexes(in, eventCount, stringCount);
+        int[] descriptions = readIndexes(in, eventCount, stringCount);
+        int[] timestamps = readIndexes(in, eventCount, stringCount);
+        short[] minutes = new short[eventCount];
+        for (int i = 0; i < eventCount; i++) {
+            minutes[i] = in.getShort();
+        }
+
+        EventCache.Entry entry = new EventCache.Entry(dayKey, DaySnapshot.create(strings,
+            categories, starts, locations, descriptions, timestamps, minutes), storedAt);
+        entry.url = urlIndex < 0 ? null : lookup(strings, urlIndex);
+        entry.etag = etagIndex < 0 ? null : lookup(strings, etagIndex);
+        entry.lastModified = lastModified;
+        return entry;
+    }
+
+    private static int addString(String value, Map<String, Integer> indexes,
+            ByteArrayOutputStream strings, DataOutputStream offsets) throws IOException {
+        Integer index = indexes.get(value);
+        if (index == null) {
+            index = indexes.size();
+            indexes.put(value, index);
+            offsets.writeInt(strings.size());
+            byte[] bytes = value.getBytes("UTF-8");
+            strings.write(bytes, 0, bytes.length);
+        }
+        return index;
+    }
+
+    private static int[] readIndexes(ByteBuffer in, int count, int stringCount) throws IOException {
+        int[] indexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = in.getInt();
+            if (indexes[i] < 0 || indexes[i] >= stringCount) {
+                throw new IOException("Snapshot is corrupted");
+            }
+        }
+        return indexes;
+    }
+
+    private static String lookup(String[] strings, int index) throws IOException {
+        if (index >= strings.length) {
+            throw new IOException("Snapshot is corrupted");
+        }
+        return strings[index];
+    }
+
+    private static String decodeString(byte[] bytes, int length) {
+        try {
+            return new String(bytes, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    private static void verifyChecksum(ByteBuffer buffer, int base, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        ByteBuffer data = buffer.duplicate();
+        data.position(base);
+        int remaining = length - 4;
+        while (remaining > 0) {
+            int size = Math.min(chunk.length, remaining);
+            data.get(chunk, 0, size);
+            crc.update(chunk, 0, size);
+            remaining -= size;
+        }
+        if ((int) crc.getValue() != buffer.getInt(base + length - 4)) {
+            throw new IOException("Snapshot checksum does not match");
+        }
+    }
+}
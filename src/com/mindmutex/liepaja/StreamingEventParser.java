@@ -0,0 +1,437 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link EventParser} that reads the page as a stream of tags and text without
+ * building a DOM. Everything before the events container is only tokenized and
+ * rows are turned into {@link Event} instances as soon as they are closed, so
+ * memory use depends on the size of a single row not the whole page.
+ * <p>
+ * Produces the same category map as {@link HtmlCleanerEventParser}: rows with other
+ * content than exactly the planned cells are skipped, whitespace and comments between
+ * cells are ignored. Cell text is trimmed and otherwise kept as is including HTML
+ * entities.
+ */
+public class StreamingEventParser implements EventParser {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ExtractionPlan plan;
+
+    public StreamingEventParser() {
+        this(ExtractionPlan.getDefault());
+    }
+
+    public StreamingEventParser(ExtractionPlan plan) {
+        this.plan = plan;
+    }
+
+    @Override
+    public Map<String, List<Event>> parse(Reader reader, CategoryListener listener)
+            throws IOException {
+        Input in = new Input(reader);
+        Rows rows = new Rows(plan, listener);
+        String containerTag = plan.getContainerTag();
+        String rowTag = plan.getRowTag();
+
+        StringBuilder name = new StringBuilder(16);
+        StringBuilder attributes = new StringBuilder(64);
+
+        // depth of nested container elements inside events container, 0 means outside
+        int depth = 0;
+        boolean found = false;
+
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c != '<') {
+                if (rows.inCell) {
+                    rows.cell.append((char) c);
+                } else if (rows.cellCount >= 0 && !Character.isWhitespace(c)) {
+                    // text between cells is a child of the row
+                    rows.extra = true;
+                }
+                continue;
+            }
+            int next = in.read();
+            if (next == '!' || next == '?') {
+                skipDeclaration(in);
+                continue;
+            }
+            boolean end = next == '/';
+            if (end) {
+                next = in.read();
+            }
+            if (!Character.isLetter(next)) {
+                // not a tag, e.g. "a < b" in text
+                if (rows.inCell) {
+                    rows.cell.append(end ? "</" : "<");
+                    if (next != -1) {
+                        rows.cell.append((char) next);
+                    }
+                } else if (rows.cellCount >= 0) {
+                    rows.extra = true;
+                }
+                continue;
+            }
+
+            name.setLength(0);
+            name.append(Character.toLowerCase((char) next));
+            int terminator = readName(in, name);
+
+            boolean containerStart = !end && depth == 0 && is(name, containerTag);
+            attributes.setLength(0);
+            boolean selfClosing = skipToTagEnd(in, terminator, containerStart ? attributes : null);
+
+            if (depth > 0 && !end && !rows.inCell && rows.cellCount >= 0
+                    && !is(name, rowTag) && !is(name, "td") && !is(name, "th")) {
+                // element between cells, a child of the row that is not a cell
+                rows.extra = true;
+            }
+
+            if (!end && !selfClosing && (is(name, "script") || is(name, "style"))) {
+                skipRawText(in, name);
+                continue;
+            }
+
+            if (depth == 0) {
+                if (containerStart && plan.isContainer(name,
+                        getAttribute(attributes, plan.getContainerAttribute()))) {
+                    depth = 1;
+                    found = true;
+                }
+                continue;
+            }
+
+            if (is(name, containerTag)) {
+                if (end) {
+                    depth--;
+                    if (depth == 0) {
+                        break;
+                    }
+                } else if (!selfClosing) {
+                    depth++;
+                }
+            } else if (is(name, rowTag)) {
+                rows.endRow();
+                if (!end) {
+                    rows.startRow();
+                }
+            } else if (is(name, "td") || is(name, "th")) {
+                rows.endCell();
+                if (!end) {
+                    rows.startCell(is(name, "th"));
+                }
+            }
+        }
+        if (!found) {
+            throw new IllegalStateException();
+        }
+        rows.endRow();
+        rows.endCategory();
+        return rows.events;
+    }
+
+    /**
+     * Reads the rest of tag name in lower case.
+     *
+     * @return first character after the name
+     */
+    private static int readName(Input in, StringBuilder name) throws IOException {
+        int c;
+        while ((c = in.read()) != -1) {
+            if (Character.isLetterOrDigit(c) || c == ':' || c == '-') {
+                name.append(Character.toLowerCase((char) c));
+            } else {
+                break;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Skips attributes up to and including closing bracket of the tag respecting quotes.
+     *
+     * @param attributes if not null raw attribute text is appended
+     * @return true if the tag is self closing
+     */
+    private static boolean skipToTagEnd(Input in, int c, StringBuilder attributes) throws IOException {
+        int quote = 0;
+        int previous = 0;
+        while (c != -1) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return previous == '/';
+            }
+            if (attributes != null) {
+                attributes.append((char) c);
+            }
+            previous = c;
+            c = in.read();
+        }
+        return false;
+    }
+
+    /**
+     * Skips comments, doctype and processing instructions.
+     */
+    private static void skipDeclaration(Input in) throws IOException {
+        int c = in.read();
+        if (c == '-') {
+            c = in.read();
+            if (c == '-') {
+                // comment, look for "-->"
+                int dashes = 0;
+                while ((c = in.read()) != -1) {
+                    if (c == '>' && dashes >= 2) {
+                        return;
+                    }
+                    dashes = c == '-' ? dashes + 1 : 0;
+                }
+                return;
+            }
+        }
+        while (c != -1 && c != '>') {
+            c = in.read();
+        }
+    }
+
+    /**
+     * Skips content of script and style elements that may contain unescaped brackets.
+     */
+    private static void skipRawText(Input in, StringBuilder name) throws IOException {
+        int matched = -1;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (matched == -1) {
+                if (c == '<') {
+                    matched = 0;
+                }
+            } else if (matched == 0) {
+                matched = c == '/' ? 1 : (c == '<' ? 0 : -1);
+            } else if (matched <= name.length()) {
+                if (Character.toLowerCase((char) c) == name.charAt(matched - 1)) {
+                    matched++;
+                } else {
+                    matched = c == '<' ? 0 : -1;
+                }
+            } else {
+                if (c == '>') {
+                    return;
+                }
+                if (!Character.isWhitespace(c)) {
+                    matched = c == '<' ? 0 : -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds attribute value in raw attribute text.
+     *
+     * @return attribute value or null
+     */
+    static String getAttribute(CharSequence attributes, String attribute) {
+        int length = attributes.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetter(attributes.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && (Character.isLetterOrDigit(attributes.charAt(i))
+                    || attributes.charAt(i) == '-' || attributes.charAt(i) == ':')) {
+                i++;
+            }
+            String name = attributes.subSequence(start, i).toString();
+            while (i < length && Character.isWhitespace(attributes.charAt(i))) {
+                i++;
+            }
+            if (i >= length || attributes.charAt(i) != '=') {
+                continue;
+            }
+            i++;
+            while (i < length && Character.isWhitespace(attributes.charAt(i))) {
+                i++;
+            }
+            int valueStart;
+            int valueEnd;
+            if (i < length && (attributes.charAt(i) == '"' || attributes.charAt(i) == '\'')) {
+                char quote = attributes.charAt(i);
+                valueStart = ++i;
+                while (i < length && attributes.charAt(i) != quote) {
+                    i++;
+                }
+                valueEnd = i++;
+            } else {
+                valueStart = i;
+                while (i < length && !Character.isWhitespace(attributes.charAt(i))
+                        && attributes.charAt(i) != '/') {
+                    i++;
+                }
+                valueEnd = i;
+            }
+            if (name.equalsIgnoreCase(attribute)) {
+                return attributes.subSequence(valueStart, valueEnd).toString();
+            }
+        }
+        return null;
+    }
+
+    private static boolean is(StringBuilder name, String tag) {
+        return ExtractionPlan.equals(name, tag);
+    }
+
+    /**
+     * Collects cells of the current row and turns complete rows into events.
+     */
+    private static class Rows {
+        final Map<String, List<Event>> events = new LinkedHashMap<String, List<Event>>();
+
+        final String[] cells;
+
+        final StringBuilder cell = new StringBuilder(128);
+
+        final ExtractionPlan plan;
+
+        final CategoryListener listener;
+
+        /**
+         * Number of cells in current row or -1 when outside of row.
+         */
+        int cellCount = -1;
+
+        boolean header;
+
+        /**
+         * Current row has text or elements between cells.
+         */
+        boolean extra;
+
+        boolean inCell;
+
+        String category;
+
+        List<Event> categoryEvents;
+
+        Rows(ExtractionPlan plan, CategoryListener listener) {
+            this.plan = plan;
+            this.listener = listener;
+            this.cells = new String[plan.getColumns()];
+        }
+
+        void startRow() {
+            cellCount = 0;
+            header = false;
+            extra = false;
+        }
+
+        void startCell(boolean headerCell) {
+            if (cellCount < 0) {
+                return;
+            }
+            if (cellCount == 0) {
+                header = headerCell;
+            }
+            cell.setLength(0);
+            inCell = true;
+        }
+
+        void endCell() {
+            if (!inCell) {
+                return;
+            }
+            if (cellCount < cells.length) {
+                cells[cellCount] = cell.toString().trim();
+            }
+            cellCount++;
+            inCell = false;
+        }
+
+        void endRow() {
+            endCell();
+            if (cellCount == cells.length && !header && !extra) {
+                String rowCategory = plan.getCategory(cells);
+                if (rowCategory != null) {
+                    endCategory();
+                    category = rowCategory;
+                    categoryEvents = events.get(category);
+                    if (categoryEvents == null) {
+                        categoryEvents = new ArrayList<Event>();
+                        events.put(category, categoryEvents);
+                    }
+                }
+                if (category != null) {
+                    categoryEvents.add(plan.createEvent(cells));
+                }
+            }
+            cellCount = -1;
+        }
+
+        void endCategory() {
+            if (listener != null && category != null) {
+                listener.onCategory(category, categoryEvents);
+            }
+        }
+    }
+
+    /**
+     * Minimal buffered character source, avoids synchronization of {@link java.io.BufferedReader}.
+     */
+    private static class Input {
+        private final Reader reader;
+
+        private final char[] buffer = new char[BUFFER_SIZE];
+
+        private int position;
+
+        private int limit;
+
+        Input(Reader reader) {
+            this.reader = reader;
+        }
+
+        int read() throws IOException {
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Table of distinct strings identified by index, used while building a
+ * {@link DaySnapshot}. Times, venues and descriptions repeat within a day so each
+ * distinct value is stored once and the snapshot keeps only indexes into
+ * {@link #toArray()}. The map is dropped once the snapshot is built.
+ * <p>
+ * Category names repeat across all days and are few, they are shared process wide
+ * through {@link #shareCategory(String)}.
+ */
+public final class StringDictionary {
+
+    /**
+     * Maximum number of shared category names, a changed site layout must not make
+     * the pool grow without bound.
+     */
+    private static final int MAX_CATEGORIES = 256;
+
+    private static final Map<String, String> CATEGORIES = new HashMap<String, String>();
+
+    private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+    private String[] values;
+
+    private int size;
+
+    public StringDictionary() {
+        this(64);
+    }
+
+    /**
+     * @param capacity expected number of distinct strings
+     */
+    public StringDictionary(int capacity) {
+        values = new String[Math.max(capacity, 4)];
+    }
+
+    /**
+     * Returns the shared instance of a category name.
+     *
+     * @param category category name
+     * @return equal string, shared by all snapshots while the pool is not full
+     */
+    public static String shareCategory(String category) {
+        synchronized (CATEGORIES) {
+            String shared = CATEGORIES.get(category);
+            if (shared == null) {
+                if (CATEGORIES.size() >= MAX_CATEGORIES) {
+                    return category;
+                }
+                CATEGORIES.put(category, category);
+                shared = category;
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Returns index of the value adding it if not present.
+     *
+     * @param value string, null is not allowed
+     * @return index
+     */
+    public int intern(String value) {
+        Integer index = indexes.get(value);
+        if (index != null) {
+            return index;
+        }
+        if (size == values.length) {
+            String[] grown = new String[values.length * 2];
+            System.arraycopy(values, 0, grown, 0, size);
+            values = grown;
+        }
+        values[size] = value;
+        indexes.put(value, size);
+        return size++;
+    }
+
+    public String get(int index) {
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return strings in index order, array of exactly {@link #size()} elements
+     */
+    public String[] toArray() {
+        String[] array = new String[size];
+        System.arraycopy(values, 0, array, 0, size);
+        return array;
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Service that loads upcoming days into {@link EventCache} in background so the
+ * activity is served from cache when opened without good connection.
+ * <p>
+ * Runs periodically (<i>sync_interval</i> hours) and syncs <i>sync_days</i> days
+ * starting today. By default runs only on Wi-Fi while charging. Failed syncs are
+ * retried with exponential backoff.
+ * <p>
+ * Alarms are delivered to {@link SyncReceiver} which starts the service holding a
+ * partial wake lock, the lock is released once the sync finishes.
+ */
+public class SyncService extends IntentService {
+
+    private static final String TAG = "SyncService";
+
+    /**
+     * Shared preferences key with number of consecutive failures.
+     */
+    private static final String FAILURES = "sync_failures";
+
+    /**
+     * Shared preferences key with interval of the scheduled alarm.
+     */
+    private static final String SCHEDULED_INTERVAL = "sync_scheduled_interval";
+
+    /**
+     * First retry delay, doubled with every failure.
+     */
+    private static final long BACKOFF_BASE = 5 * 60 * 1000L;
+
+    private static final int BACKOFF_MAX_EXPONENT = 6;
+
+    /**
+     * Maximum time to wait for all days to load.
+     */
+    private static final long SYNC_TIMEOUT = 10 * 60 * 1000L;
+
+    /**
+     * Held from {@link #start(Context)} until the sync finishes, guarded by class.
+     */
+    private static PowerManager.WakeLock wakeLock = null;
+
+    public SyncService() {
+        super("SyncService");
+    }
+
+    /**
+     * Schedules or cancels periodic sync according to preferences. Safe to call
+     * repeatedly, an existing alarm is kept unless the interval changed so the first
+     * sync is not pushed further away on every call.
+     *
+     * @param context context
+     */
+    public static void schedule(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent existing = createOperation(context, 0, PendingIntent.FLAG_NO_CREATE);
+
+        if (!preferences.getBoolean("sync_enabled", true)) {
+            if (existing != null) {
+                alarmManager.cancel(existing);
+                existing.cancel();
+            }
+            return;
+        }
+        long interval = Math.max(1, LiepajasAfisa.parseInt(
+            preferences.getString("sync_interval", "6"), 6)) * AlarmManager.INTERVAL_HOUR;
+        if (existing != null && preferences.getLong(SCHEDULED_INTERVAL, 0) == interval) {
+            return;
+        }
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+            SystemClock.elapsedRealtime() + interval, interval,
+            createOperation(context, 0, PendingIntent.FLAG_UPDATE_CURRENT));
+        preferences.edit().putLong(SCHEDULED_INTERVAL, interval).commit();
+    }
+
+    /**
+     * Creates broadcast to {@link SyncReceiver} that starts the sync.
+     *
+     * @param requestCode 0 for periodic sync, 1 for retry
+     * @param flags {@link PendingIntent} flags
+     */
+    private static PendingIntent createOperation(Context context, int requestCode, int flags) {
+        Intent intent = new Intent(context, SyncReceiver.class);
+        intent.setAction(SyncReceiver.ACTION_SYNC);
+        return PendingIntent.getBroadcast(context, requestCode, intent, flags);
+    }
+
+    /**
+     * Starts the service keeping the device awake until the sync finishes.
+     *
+     * @param context context
+     */
+    static void start(Context context) {
+        synchronized (SyncService.class) {
+            if (wakeLock == null) {
+                PowerManager powerManager = (PowerManager)
+                    context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+                wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+                wakeLock.setReferenceCounted(true);
+            }
+            wakeLock.acquire();
+        }
+        context.startService(new Intent(context, SyncService.class));
+    }
+
+    private static void releaseWakeLock() {
+        synchronized (SyncService.class) {
+            if (wakeLock != null && wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+        }
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        try {
+            handleSync();
+        } finally {
+            releaseWakeLock();
+        }
+    }
+
+    private void handleSync() {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        if (!preferences.getBoolean("sync_enabled", true)) {
+            return;
+        }
+        if (preferences.getBoolean("sync_wifi_only", true) && !isUnmetered()) {
+            Log.d(TAG, "Skipped, not on Wi-Fi");
+            return;
+        }
+        if (preferences.getBoolean("sync_charging_only", true) && !isCharging()) {
+            Log.d(TAG, "Skipped, not charging");
+            return;
+        }
+
+        int days = Math.max(1, LiepajasAfisa.parseInt(preferences.getString("sync_days", "7"), 7));
+        int failed = sync(days);
+
+        int failures = preferences.getInt(FAILURES, 0);
+        if (failed == 0) {
+            if (failures > 0) {
+                preferences.edit().remove(FAILURES).commit();
+            }
+            return;
+        }
+
+        failures++;
+        preferences.edit().putInt(FAILURES, failures).commit();
+        long delay = BACKOFF_BASE << Math.min(failures - 1, BACKOFF_MAX_EXPONENT);
+        Log.w(TAG, failed + " day(s) failed, retry in " + delay / 1000 + " s");
+
+        // one shot retry, periodic schedule stays in place
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay,
+            createOperation(this, 1, PendingIntent.FLAG_UPDATE_CURRENT));
+    }
+
+    /**
+     * Loads days on the shared {@link ContentLoaderPool} with prefetch priority so loads
+     * requested by the activity at the same time are coalesced and go first.
+     *
+     * @param days number of days starting today
+     * @return number of days that failed or did not finish in time
+     */
+    private int sync(int days) {
+        final CountDownLatch done = new CountDownLatch(days);
+        final AtomicInteger failed = new AtomicInteger();
+        ContentHandlerStatus handler = new ContentHandlerStatus() {
+            @Override
+            public void onComplete(Map<String, List<Event>> events) {
+                done.countDown();
+            }
+
+            @Override
+            public void onError(int errorCode, String message) {
+                failed.incrementAndGet();
+                done.countDown();
+            }
+        };
+
+        ContentLoaderPool pool = LiepajasAfisa.getLoaderPool(this);
+        Calendar day = Calendar.getInstance();
+        for (int i = 0; i < days; i++) {
+            pool.execute(LiepajasAfisa.createLoader(this, day, handler),
+                ContentLoaderPool.PRIORITY_PREFETCH);
+            day.add(Calendar.DATE, 1);
+        }
+
+        try {
+            if (!done.await(SYNC_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return failed.get() + (int) done.getCount();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return failed.get() + (int) done.getCount();
+        }
+        EventCache cache = LiepajasAfisa.getEventCache(this);
+        int pruned = cache.prune();
+        Log.d(TAG, "Synced " + days + " day(s), pruned " + pruned + ", cache " + cache);
+        return failed.get();
+    }
+
+    private boolean isUnmetered() {
+        ConnectivityManager connectivity =
+            (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+        return network != null && network.isConnected()
+            && network.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    private boolean isCharging() {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+/**
+ * Events of a day across all categories ordered by start time. Events without
+ * known time are placed after all others in their original order.
+ * <p>
+ * Ordering is a counting sort over minutes of day so building a timeline is linear
+ * in the number of events, lookups by time are binary searches.
+ */
+public final class Timeline {
+
+    /**
+     * Largest value returned by {@link Event#parseMinutes(String)}, <i>24:59</i>.
+     */
+    private static final int MAX_MINUTES = 24 * 60 + 59;
+
+    private final DaySnapshot snapshot;
+
+    /**
+     * Snapshot positions in time order.
+     */
+    private final int[] positions;
+
+    /**
+     * Minutes of the event at the same index in {@link #positions}.
+     */
+    private final int[] minutes;
+
+    /**
+     * Number of events with known time, these occupy the beginning of the arrays.
+     */
+    private final int timed;
+
+    private Timeline(DaySnapshot snapshot, int[] positions, int[] minutes, int timed) {
+        this.snapshot = snapshot;
+        this.positions = positions;
+        this.minutes = minutes;
+        this.timed = timed;
+    }
+
+    /**
+     * @param snapshot events of the day
+     * @return events of the snapshot in time order
+     */
+    public static Timeline create(DaySnapshot snapshot) {
+        int count = snapshot.getEventCount();
+
+        // last bucket collects events without time
+        int[] offsets = new int[MAX_MINUTES + 3];
+        for (int position = 0; position < count; position++) {
+            offsets[bucket(snapshot.getMinutes(position)) + 1]++;
+        }
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+        int timed = offsets[MAX_MINUTES + 1];
+
+        int[] positions = new int[count];
+        int[] minutes = new int[count];
+        for (int position = 0; position < count; position++) {
+            int value = snapshot.getMinutes(position);
+            int index = offsets[bucket(value)]++;
+            positions[index] = position;
+            minutes[index] = value;
+        }
+        return new Timeline(snapshot, positions, minutes, timed);
+    }
+
+    private static int bucket(int minutes) {
+        return minutes < 0 || minutes > MAX_MINUTES ? MAX_MINUTES + 1 : minutes;
+    }
+
+    public DaySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public int size() {
+        return positions.length;
+    }
+
+    /**
+     * @return number of events with known time, see {@link #indexOf(int)}
+     */
+    public int getTimedCount() {
+        return timed;
+    }
+
+    /**
+     * @param index index in time order
+     * @return position of the event in the snapshot
+     */
+    public int getPosition(int index) {
+        return positions[index];
+    }
+
+    /**
+     * @param index index in time order
+     * @return minutes since midnight or -1 if not known
+     */
+    public int getMinutes(int index) {
+        return minutes[index];
+    }
+
+    /**
+     * Finds the first event starting at or after the given time.
+     *
+     * @param value minutes since midnight
+     * @return index in time order, {@link #getTimedCount()} if all timed events start earlier
+     */
+    public int indexOf(int value) {
+        int low = 0;
+        int high = timed;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (minutes[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns events starting within the window, such as the next two hours.
+     *
+     * @param from minutes since midnight, inclusive
+     * @param to minutes since midnight, exclusive
+     * @return snapshot positions in time order
+     */
+    public int[] getWindow(int from, int to) {
+        int start = indexOf(from);
+        int end = Math.max(start, indexOf(to));
+        return getPositions(start, end);
+    }
+
+    /**
+     * @param start first index in time order, inclusive
+     * @param end last index in time order, exclusive
+     * @return snapshot positions in the range
+     */
+    public int[] getPositions(int start, int end) {
+        int[] range = new int[end - start];
+        System.arraycopy(positions, start, range, 0, range.length);
+        return range;
+    }
+}
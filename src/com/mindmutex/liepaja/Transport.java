@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2011 by mindmutex.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mindmutex.liepaja;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fetches pages for {@link ContentLoader}. Allows to replace the network with files or
+ * memory in tests and benchmarks.
+ */
+public interface Transport {
+
+    /**
+     * Creates exchange for the URL, the request is sent by {@link Exchange#execute()}.
+     *
+     * @param url URL to fetch
+     * @return new exchange
+     * @throws IOException if URL is not supported
+     */
+    Exchange open(String url) throws IOException;
+
+    /**
+     * Single request and response. Methods other than {@link #abort()} are called
+     * from the loading thread only.
+     */
+    abstract class Exchange {
+
+        public static final int OK = 200;
+
+        public static final int NOT_MODIFIED = 304;
+
+        protected String requestEtag;
+
+        protected long requestLastModified;
+
+        protected String etag;
+
+        protected long lastModified;
+
+        protected String contentType;
+
+        protected String contentEncoding;
+
+        /**
+         * Makes the request conditional.
+         *
+         * @param etag previous <i>ETag</i> or null
+         * @param lastModified previous <i>Last-Modified</i> or 0
+         */
+        public void setValidators(String etag, long lastModified) {
+            this.requestEtag = etag;
+            this.requestLastModified = lastModified;
+        }
+
+        /**
+         * Sends the request and reads response headers.
+         *
+         * @return response status code
+         * @throws IOException if request fails
+         */
+        public abstract int execute() throws IOException;
+
+        /**
+         * @return response body as sent, possibly compressed see {@link #getContentEncoding()}
+         * @throws IOException if body can not be read
+         */
+        public abstract InputStream getBody() throws IOException;
+
+        /**
+         * Releases the exchange, the underlying connection may be reused.
+         */
+        public abstract void close();
+
+        /**
+         * Stops the exchange from another thread, blocked reads fail.
+         */
+        public abstract void abort();
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+    }
+}